@@ -0,0 +1,85 @@
+package ru.hse.fmcs;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Lookups per second in a BlobIndex of 1M and 10M hashes, half of the probes are misses
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgs = {"-Xmx1g"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class BlobIndexBenchmark {
+    private static final int PROBES = 1 << 16;
+
+    @Param({"1000000", "10000000"})
+    public int objects;
+
+    private Path directory;
+    private BlobIndex index;
+    private byte[][] probes;
+    private int nextProbe;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("blob-index-benchmark");
+        Random random = new Random(42);
+        // evenly spaced prefixes keep the hashes sorted without sorting 10M arrays
+        long step = Long.divideUnsigned(-1L, objects);
+        byte[] hashes = new byte[objects * BlobIndex.HASH_SIZE];
+        long[] offsets = new long[objects];
+        for (int i = 0; i < objects; i++) {
+            long prefix = step * i;
+            for (int j = 0; j < Long.BYTES; j++) {
+                hashes[i * BlobIndex.HASH_SIZE + j] = (byte) (prefix >>> (56 - 8 * j));
+            }
+            for (int j = Long.BYTES; j < BlobIndex.HASH_SIZE; j++) {
+                hashes[i * BlobIndex.HASH_SIZE + j] = (byte) random.nextInt();
+            }
+            offsets[i] = i;
+        }
+        Path indexFile = directory.resolve("benchmark" + GitConstants.PACK_INDEX_EXTENSION);
+        BlobIndex.write(indexFile, hashes, offsets);
+        index = BlobIndex.open(indexFile);
+        probes = new byte[PROBES][];
+        for (int i = 0; i < PROBES; i++) {
+            byte[] probe = new byte[BlobIndex.HASH_SIZE];
+            System.arraycopy(hashes, random.nextInt(objects) * BlobIndex.HASH_SIZE, probe, 0, BlobIndex.HASH_SIZE);
+            if (i % 2 == 1) {
+                probe[BlobIndex.HASH_SIZE - 1] ^= 1;
+            }
+            probes[i] = probe;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        index = null;
+        FileUtils.deleteQuietly(directory.toFile());
+    }
+
+    @Benchmark
+    public long lookup() {
+        return index.find(probes[nextProbe++ & (PROBES - 1)]);
+    }
+}
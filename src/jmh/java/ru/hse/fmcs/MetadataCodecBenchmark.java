@@ -0,0 +1,104 @@
+package ru.hse.fmcs;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Load and save of the staging area and of a commit with a flat file map, as JSON through
+ * Jackson and in the binary form of MetadataCodec. Paths are spread over 1000 directories
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class MetadataCodecBenchmark {
+    @Param({"1000", "100000"})
+    public int files;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private Repository.StagingArea stagingArea;
+    private Repository.Commit commit;
+    private byte[] stagingJson;
+    private byte[] stagingBinary;
+    private byte[] commitJson;
+    private byte[] commitBinary;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        stagingArea = new Repository.StagingArea();
+        Map<String, String> trackedFiles = new HashMap<>();
+        for (int i = 0; i < files; i++) {
+            String path = "src/module" + i % 100 + "/package" + i % 10 + "/File" + i + ".java";
+            String hash = ObjectId.sha256(path.getBytes()).toString();
+            if (i % 10 == 0) {
+                stagingArea.deleteFile(path);
+            } else {
+                stagingArea.addFile(path, hash);
+            }
+            trackedFiles.put(path, hash);
+        }
+        commit = new Repository.Commit(ObjectId.sha256(new byte[0]), ObjectId.sha256(new byte[1]), null, null,
+                trackedFiles, "2024-01-01T00:00:00Z", "Benchmark commit", "Test user");
+        stagingJson = objectMapper.writeValueAsBytes(stagingArea);
+        stagingBinary = MetadataCodec.encodeStagingArea(stagingArea);
+        commitJson = objectMapper.writeValueAsBytes(commit);
+        commitBinary = MetadataCodec.encodeCommit(commit);
+    }
+
+    @Benchmark
+    public byte[] saveStagingJson() throws Exception {
+        return objectMapper.writeValueAsBytes(stagingArea);
+    }
+
+    @Benchmark
+    public byte[] saveStagingBinary() {
+        return MetadataCodec.encodeStagingArea(stagingArea);
+    }
+
+    @Benchmark
+    public Repository.StagingArea loadStagingJson() throws Exception {
+        return objectMapper.readValue(stagingJson, Repository.StagingArea.class);
+    }
+
+    @Benchmark
+    public Repository.StagingArea loadStagingBinary() throws Exception {
+        return MetadataCodec.decodeStagingArea(stagingBinary);
+    }
+
+    @Benchmark
+    public byte[] saveCommitJson() throws Exception {
+        return objectMapper.writeValueAsBytes(commit);
+    }
+
+    @Benchmark
+    public byte[] saveCommitBinary() {
+        return MetadataCodec.encodeCommit(commit);
+    }
+
+    @Benchmark
+    public Repository.Commit loadCommitJson() throws Exception {
+        return objectMapper.readValue(commitJson, Repository.Commit.class);
+    }
+
+    @Benchmark
+    public Repository.Commit loadCommitBinary() throws Exception {
+        return MetadataCodec.decodeCommit(commitBinary);
+    }
+}
@@ -0,0 +1,168 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * Stores blobs of many files at once: every worker reads, hashes and compresses its own file,
+ * so large adds use all cores. Results are returned in the order of the given files and the
+ * index is updated on the calling thread, the output doesn't depend on scheduling
+ */
+public class AddPipeline {
+    private final String workingDirectory;
+    private final BlobStore blobStore;
+    private final GitIndex index;
+    private final int workers;
+    private final CommandStatistics statistics;
+
+    public AddPipeline(@NotNull String workingDir, @NotNull BlobStore store, @NotNull GitIndex gitIndex, int workerCount,
+                       @NotNull CommandStatistics commandStatistics) {
+        workingDirectory = workingDir;
+        blobStore = store;
+        index = gitIndex;
+        workers = Math.max(1, workerCount);
+        statistics = commandStatistics;
+    }
+
+    /*
+     * Replaces directories with all files inside them that aren't ignored, recursively and
+     * in sorted order. Ignored directories and the git directory in the root are not entered
+     */
+    public List<String> expand(@NotNull List<String> paths, @NotNull WorktreeScanner.IgnoreFilter ignoreFilter) throws GitException {
+        Path root = Paths.get(workingDirectory).toAbsolutePath().normalize();
+        Path gitDirectory = root.resolve("git");
+        List<String> files = new ArrayList<>();
+        for (String path : paths) {
+            Path start = root.resolve(path).normalize();
+            if (!Files.isDirectory(start)) {
+                files.add(path);
+                continue;
+            }
+            List<String> directoryFiles = new ArrayList<>();
+            try {
+                Files.walkFileTree(start, new SimpleFileVisitor<>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) {
+                        if (directory.equals(start)) {
+                            return FileVisitResult.CONTINUE;
+                        }
+                        boolean skip = directory.equals(gitDirectory) || ignoreFilter.isIgnored(relativize(root, directory), true);
+                        return skip ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                        String filePath = relativize(root, file);
+                        if (attributes.isRegularFile() && !ignoreFilter.isIgnored(filePath, false)) {
+                            directoryFiles.add(filePath);
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException exception) {
+                throw new GitException("Can't list directory " + path);
+            }
+            Collections.sort(directoryFiles);
+            files.addAll(directoryFiles);
+        }
+        return files;
+    }
+
+    private static String relativize(Path root, Path file) {
+        return root.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+    }
+
+    /*
+     * Blob hashes of the files, the i-th hash belongs to the i-th file. If any file can't be
+     * stored, all failures are reported together and the index stays unchanged
+     */
+    public List<String> write(@NotNull List<String> files) throws GitException {
+        List<Blob> blobs = new ArrayList<>();
+        List<String> failures = new ArrayList<>();
+        int threads = Math.min(workers, files.size());
+        if (threads <= 1) {
+            for (String file : files) {
+                try {
+                    blobs.add(writeBlob(file));
+                } catch (GitException exception) {
+                    failures.add(exception.getMessage());
+                }
+            }
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<Blob>> writes = new ArrayList<>();
+                for (String file : files) {
+                    writes.add(executor.submit(() -> writeBlob(file)));
+                }
+                for (Future<Blob> write : writes) {
+                    try {
+                        blobs.add(write.get());
+                    } catch (ExecutionException exception) {
+                        failures.add(exception.getCause().getMessage());
+                    } catch (InterruptedException exception) {
+                        Thread.currentThread().interrupt();
+                        throw new GitException("Add was interrupted");
+                    }
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+        if (!failures.isEmpty()) {
+            throw new GitException(String.join("\n", failures));
+        }
+        List<String> hashes = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            Blob blob = blobs.get(i);
+            if (blob.attributes != null) {
+                index.update(files.get(i), blob.attributes, blob.hash);
+            }
+            hashes.add(blob.hash);
+        }
+        return hashes;
+    }
+
+    // runs on a worker, so it only reads the index
+    private Blob writeBlob(String file) throws GitException {
+        GitIndex.Entry cleanEntry = index.getCleanEntry(file);
+        if (cleanEntry != null && blobStore.contains(cleanEntry.getHash())) {
+            statistics.add(BlobStore.BYTES_DEDUPLICATED, cleanEntry.getSize());
+            return new Blob(cleanEntry.getHash(), null);
+        }
+        Path path = Paths.get(workingDirectory, file);
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException exception) {
+            throw new GitException("Can't get content of file " + path);
+        }
+        String blobHash = blobStore.write(path);
+        statistics.increment(GitIndex.FILES_HASHED);
+        return new Blob(blobHash, attributes);
+    }
+
+    private static class Blob {
+        private final String hash;
+        private final BasicFileAttributes attributes;
+
+        private Blob(String blobHash, BasicFileAttributes fileAttributes) {
+            hash = blobHash;
+            attributes = fileAttributes;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package ru.hse.fmcs;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Delta between two versions of a file as a list of "copy a range of the base" and
+ * "insert literal bytes" instructions
+ */
+public final class BinaryDelta {
+    private BinaryDelta() {}
+
+    private static final int BLOCK_SIZE = 16;
+    private static final byte INSERT = 0;
+    private static final byte COPY = 1;
+
+    public static byte[] create(byte[] base, byte[] target) {
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        Varints.write(delta, base.length);
+        Varints.write(delta, target.length);
+        Map<Integer, Integer> baseBlocks = new HashMap<>();
+        for (int offset = 0; offset + BLOCK_SIZE <= base.length; offset += BLOCK_SIZE) {
+            baseBlocks.putIfAbsent(blockHash(base, offset), offset);
+        }
+        int literalStart = 0;
+        int position = 0;
+        while (position + BLOCK_SIZE <= target.length) {
+            Integer candidate = baseBlocks.get(blockHash(target, position));
+            if (candidate == null || !Arrays.equals(base, candidate, candidate + BLOCK_SIZE, target, position, position + BLOCK_SIZE)) {
+                position++;
+                continue;
+            }
+            int baseStart = candidate;
+            int targetStart = position;
+            while (baseStart > 0 && targetStart > literalStart && base[baseStart - 1] == target[targetStart - 1]) {
+                baseStart--;
+                targetStart--;
+            }
+            int length = candidate + BLOCK_SIZE - baseStart;
+            while (baseStart + length < base.length && targetStart + length < target.length
+                    && base[baseStart + length] == target[targetStart + length]) {
+                length++;
+            }
+            writeInsert(delta, target, literalStart, targetStart);
+            delta.write(COPY);
+            Varints.write(delta, baseStart);
+            Varints.write(delta, length);
+            position = targetStart + length;
+            literalStart = position;
+        }
+        writeInsert(delta, target, literalStart, target.length);
+        return delta.toByteArray();
+    }
+
+    public static byte[] apply(byte[] base, byte[] delta) throws GitException {
+        try {
+            ByteBuffer instructions = ByteBuffer.wrap(delta);
+            if (Varints.read(instructions) != base.length) {
+                throw new GitException("Delta doesn't match its base");
+            }
+            byte[] target = new byte[Math.toIntExact(Varints.read(instructions))];
+            int position = 0;
+            while (instructions.hasRemaining()) {
+                byte instruction = instructions.get();
+                if (instruction == INSERT) {
+                    int length = Math.toIntExact(Varints.read(instructions));
+                    instructions.get(target, position, length);
+                    position += length;
+                } else if (instruction == COPY) {
+                    int offset = Math.toIntExact(Varints.read(instructions));
+                    int length = Math.toIntExact(Varints.read(instructions));
+                    System.arraycopy(base, offset, target, position, length);
+                    position += length;
+                } else {
+                    throw new GitException("Corrupted delta");
+                }
+            }
+            if (position != target.length) {
+                throw new GitException("Corrupted delta");
+            }
+            return target;
+        } catch (RuntimeException exception) {
+            throw new GitException("Corrupted delta", exception);
+        }
+    }
+
+    private static void writeInsert(ByteArrayOutputStream delta, byte[] target, int from, int to) {
+        if (from >= to) {
+            return;
+        }
+        delta.write(INSERT);
+        Varints.write(delta, to - from);
+        delta.write(target, from, to - from);
+    }
+
+    private static int blockHash(byte[] data, int offset) {
+        int hash = 0;
+        for (int i = offset; i < offset + BLOCK_SIZE; i++) {
+            hash = hash * 31 + data[i];
+        }
+        return hash;
+    }
+}
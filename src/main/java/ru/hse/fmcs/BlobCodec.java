@@ -0,0 +1,20 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/*
+ * Compression applied to blob contents, the id is written to every blob header
+ */
+public interface BlobCodec {
+    byte getId();
+
+    @NotNull String getName();
+
+    @NotNull OutputStream compress(@NotNull OutputStream outputStream) throws IOException;
+
+    @NotNull InputStream decompress(@NotNull InputStream inputStream) throws IOException;
+}
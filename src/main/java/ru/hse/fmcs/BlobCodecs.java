@@ -0,0 +1,124 @@
+package ru.hse.fmcs;
+
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+public final class BlobCodecs {
+    private BlobCodecs() {}
+
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    public static final @NotNull BlobCodec NONE = new BlobCodec() {
+        public byte getId() {
+            return 0;
+        }
+
+        public @NotNull String getName() {
+            return "none";
+        }
+
+        public @NotNull OutputStream compress(@NotNull OutputStream outputStream) {
+            return outputStream;
+        }
+
+        public @NotNull InputStream decompress(@NotNull InputStream inputStream) {
+            return inputStream;
+        }
+    };
+
+    public static final @NotNull BlobCodec DEFLATE = new BlobCodec() {
+        public byte getId() {
+            return 1;
+        }
+
+        public @NotNull String getName() {
+            return "deflate";
+        }
+
+        public @NotNull OutputStream compress(@NotNull OutputStream outputStream) {
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+            return new DeflaterOutputStream(outputStream, deflater, STREAM_BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        deflater.end();
+                    }
+                }
+            };
+        }
+
+        public @NotNull InputStream decompress(@NotNull InputStream inputStream) {
+            Inflater inflater = new Inflater();
+            return new InflaterInputStream(inputStream, inflater, STREAM_BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inflater.end();
+                    }
+                }
+            };
+        }
+    };
+
+    public static final @NotNull BlobCodec LZ4 = new BlobCodec() {
+        public byte getId() {
+            return 2;
+        }
+
+        public @NotNull String getName() {
+            return "lz4";
+        }
+
+        public @NotNull OutputStream compress(@NotNull OutputStream outputStream) throws IOException {
+            return new LZ4FrameOutputStream(outputStream);
+        }
+
+        public @NotNull InputStream decompress(@NotNull InputStream inputStream) throws IOException {
+            return new LZ4FrameInputStream(inputStream);
+        }
+    };
+
+    private static final Map<String, BlobCodec> CODECS = new LinkedHashMap<>();
+
+    static {
+        register(NONE);
+        register(DEFLATE);
+        register(LZ4);
+    }
+
+    public static synchronized void register(@NotNull BlobCodec codec) {
+        CODECS.put(codec.getName(), codec);
+    }
+
+    public static synchronized @NotNull BlobCodec forName(@NotNull String name) throws GitException {
+        BlobCodec codec = CODECS.get(name);
+        if (codec == null) {
+            throw new GitException("Unknown compression " + name + ", available: " + String.join(", ", CODECS.keySet()));
+        }
+        return codec;
+    }
+
+    public static synchronized @NotNull BlobCodec forId(byte id) throws GitException {
+        for (BlobCodec codec : CODECS.values()) {
+            if (codec.getId() == id) {
+                return codec;
+            }
+        }
+        throw new GitException("Blob is compressed with unknown codec " + id);
+    }
+}
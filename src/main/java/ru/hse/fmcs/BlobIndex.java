@@ -0,0 +1,205 @@
+package ru.hse.fmcs;
+
+import com.google.common.hash.HashCode;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/*
+ * On-disk index of blobs sorted by hash, like git's .idx: a 256-entry fan-out table
+ * (number of hashes whose first byte is not greater than i) followed by hash and offset pairs.
+ * The file is memory-mapped, a lookup is a binary search inside one fan-out bucket over
+ * the mapped entries and allocates nothing
+ */
+public class BlobIndex {
+    public static final int HASH_SIZE = 32;
+
+    private static final byte[] MAGIC = {'G', 'I', 'D', 'X'};
+    private static final int VERSION = 2;
+    private static final int VERSION_WITHOUT_FAN_OUT = 1;
+    private static final int HEADER_SIZE = MAGIC.length + 2 * Integer.BYTES;
+    private static final int FAN_OUT_SIZE = 256;
+    private static final int ENTRY_SIZE = HASH_SIZE + Long.BYTES;
+
+    private final MappedByteBuffer buffer;
+    private final int size;
+    private final int entriesStart;
+    private final int[] fanOut;
+
+    private BlobIndex(MappedByteBuffer indexBuffer, int indexSize, int indexEntriesStart, int[] indexFanOut) {
+        buffer = indexBuffer;
+        size = indexSize;
+        entriesStart = indexEntriesStart;
+        fanOut = indexFanOut;
+    }
+
+    public static BlobIndex open(@NotNull Path indexFile) throws GitException {
+        try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            byte[] magic = new byte[MAGIC.length];
+            buffer.get(magic);
+            int version = buffer.getInt();
+            if (!Arrays.equals(magic, MAGIC) || (version != VERSION && version != VERSION_WITHOUT_FAN_OUT)) {
+                throw new GitException("Corrupted blob index " + indexFile);
+            }
+            int size = buffer.getInt();
+            int[] fanOut = new int[FAN_OUT_SIZE];
+            int entriesStart = HEADER_SIZE;
+            if (version == VERSION) {
+                for (int i = 0; i < FAN_OUT_SIZE; i++) {
+                    fanOut[i] = buffer.getInt();
+                }
+                entriesStart += FAN_OUT_SIZE * Integer.BYTES;
+            } else {
+                Arrays.fill(fanOut, size);
+            }
+            if (channel.size() != entriesStart + (long) size * ENTRY_SIZE || fanOut[FAN_OUT_SIZE - 1] != size) {
+                throw new GitException("Corrupted blob index " + indexFile);
+            }
+            return new BlobIndex(buffer, size, entriesStart, fanOut);
+        } catch (IOException exception) {
+            throw new GitException("Can't read blob index " + indexFile);
+        }
+    }
+
+    /*
+     * Offsets must be given for every blob, keys are hex hashes
+     */
+    public static void write(@NotNull Path indexFile, @NotNull Map<String, Long> offsets) throws GitException {
+        List<String> hashes = offsets.keySet().stream().sorted().collect(Collectors.toList());
+        byte[] sortedHashes = new byte[hashes.size() * HASH_SIZE];
+        long[] sortedOffsets = new long[hashes.size()];
+        for (int i = 0; i < hashes.size(); i++) {
+            System.arraycopy(HashCode.fromString(hashes.get(i)).asBytes(), 0, sortedHashes, i * HASH_SIZE, HASH_SIZE);
+            sortedOffsets[i] = offsets.get(hashes.get(i));
+        }
+        write(indexFile, sortedHashes, sortedOffsets);
+    }
+
+    /*
+     * sortedHashes holds raw hashes one after another in ascending unsigned order,
+     * offsets[i] belongs to the i-th hash
+     */
+    public static void write(@NotNull Path indexFile, byte[] sortedHashes, long[] offsets) throws GitException {
+        int size = offsets.length;
+        int[] fanOut = new int[FAN_OUT_SIZE];
+        for (int i = 0; i < size; i++) {
+            fanOut[Byte.toUnsignedInt(sortedHashes[i * HASH_SIZE])]++;
+        }
+        for (int i = 1; i < FAN_OUT_SIZE; i++) {
+            fanOut[i] += fanOut[i - 1];
+        }
+        try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + FAN_OUT_SIZE * Integer.BYTES);
+            header.put(MAGIC).putInt(VERSION).putInt(size);
+            for (int count : fanOut) {
+                header.putInt(count);
+            }
+            header.flip();
+            writeFully(channel, header);
+            ByteBuffer entries = ByteBuffer.allocate(ENTRY_SIZE * 4096);
+            for (int i = 0; i < size; i++) {
+                if (entries.remaining() < ENTRY_SIZE) {
+                    entries.flip();
+                    writeFully(channel, entries);
+                    entries.clear();
+                }
+                entries.put(sortedHashes, i * HASH_SIZE, HASH_SIZE).putLong(offsets[i]);
+            }
+            entries.flip();
+            writeFully(channel, entries);
+            channel.force(true);
+        } catch (IOException exception) {
+            throw new GitException("Can't write blob index " + indexFile);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String getHash(int position) {
+        byte[] hash = new byte[HASH_SIZE];
+        ByteBuffer entry = buffer.duplicate();
+        entry.position(entryPosition(position));
+        entry.get(hash);
+        return HashCode.fromBytes(hash).toString();
+    }
+
+    /*
+     * Offset of the blob or -1 if the index doesn't contain it
+     */
+    public long find(@NotNull String blobHash) {
+        if (blobHash.length() != 2 * HASH_SIZE) {
+            throw new IllegalArgumentException("Wrong hash " + blobHash);
+        }
+        // the hex is parsed in place, so the lookup allocates nothing
+        return find(parseLong(blobHash, 0), parseLong(blobHash, 1), parseLong(blobHash, 2), parseLong(blobHash, 3));
+    }
+
+    public long find(byte[] hash) {
+        return find(getLong(hash, 0), getLong(hash, 1), getLong(hash, 2), getLong(hash, 3));
+    }
+
+    // the hash is given as four big-endian longs
+    private long find(long first, long second, long third, long fourth) {
+        int bucket = (int) (first >>> (Long.SIZE - Byte.SIZE));
+        int low = bucket == 0 ? 0 : fanOut[bucket - 1];
+        int high = fanOut[bucket] - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int position = entryPosition(middle);
+            int comparison = Long.compareUnsigned(buffer.getLong(position), first);
+            if (comparison == 0) {
+                comparison = Long.compareUnsigned(buffer.getLong(position + Long.BYTES), second);
+            }
+            if (comparison == 0) {
+                comparison = Long.compareUnsigned(buffer.getLong(position + 2 * Long.BYTES), third);
+            }
+            if (comparison == 0) {
+                comparison = Long.compareUnsigned(buffer.getLong(position + 3 * Long.BYTES), fourth);
+            }
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return buffer.getLong(position + HASH_SIZE);
+            }
+        }
+        return -1;
+    }
+
+    private int entryPosition(int entry) {
+        return entriesStart + entry * ENTRY_SIZE;
+    }
+
+    private static long getLong(byte[] hash, int index) {
+        long value = 0;
+        for (int i = index * Long.BYTES; i < (index + 1) * Long.BYTES; i++) {
+            value = (value << 8) | Byte.toUnsignedInt(hash[i]);
+        }
+        return value;
+    }
+
+    private static long parseLong(String hexHash, int index) {
+        int start = index * 2 * Long.BYTES;
+        return Long.parseUnsignedLong(hexHash, start, start + 2 * Long.BYTES, 16);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.InputStream;
+import java.nio.file.Path;
+
+/*
+ * Content-addressed storage of file contents, blobs are named by SHA-256 of the uncompressed data
+ */
+public interface BlobStore {
+    @NotNull String BYTES_HASHED = "Bytes hashed";
+    @NotNull String BYTES_WRITTEN = "Blob bytes written";
+    @NotNull String BYTES_STORED = "Blob bytes stored";
+    @NotNull String BYTES_DEDUPLICATED = "Blob bytes deduplicated";
+
+    boolean contains(@NotNull String blobHash);
+
+    /*
+     * Hash the file would be stored under, nothing is written
+     */
+    @NotNull String hash(@NotNull Path file) throws GitException;
+
+    /*
+     * Stores the file (unless the same content is already stored) and returns its hash
+     */
+    @NotNull String write(@NotNull Path file) throws GitException;
+
+    /*
+     * Stores content that doesn't come from a file, e.g. a merged version of one
+     */
+    @NotNull String write(byte @NotNull [] content) throws GitException;
+
+    /*
+     * Uncompressed content of the blob
+     */
+    @NotNull InputStream open(@NotNull String blobHash) throws GitException;
+
+    /*
+     * Writes uncompressed content of the blob to the working tree file
+     */
+    void restore(@NotNull String blobHash, @NotNull Path target) throws GitException;
+}
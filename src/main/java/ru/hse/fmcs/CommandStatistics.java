@@ -0,0 +1,39 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class CommandStatistics {
+    private final Map<String, Long> counters = new LinkedHashMap<>();
+
+    public synchronized void increment(@NotNull String counter) {
+        add(counter, 1);
+    }
+
+    public synchronized void add(@NotNull String counter, long delta) {
+        counters.merge(counter, delta, Long::sum);
+    }
+
+    public synchronized long get(@NotNull String counter) {
+        return counters.getOrDefault(counter, 0L);
+    }
+
+    public synchronized void addAll(@NotNull CommandStatistics other) {
+        for (Map.Entry<String, Long> counter : other.counters.entrySet()) {
+            add(counter.getKey(), counter.getValue());
+        }
+    }
+
+    public synchronized void clear() {
+        counters.clear();
+    }
+
+    public synchronized void print(@NotNull PrintStream outputStream) {
+        for (Map.Entry<String, Long> counter : counters.entrySet()) {
+            outputStream.println(counter.getKey() + ": " + counter.getValue());
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/*
+ * Ancestry of all commits without their bodies, like git's commit-graph. git/commit-graph is an
+ * append-only table of fixed-size records: commit id, positions of up to two parents and the
+ * generation number (1 for a root, otherwise one more than the highest parent). A commit is
+ * always appended after its parents, so positions never change.
+ * git/commit-graph.idx maps ids to positions for the first records, sorted by id for a binary
+ * search; records appended after it was written form a short tail that is kept in a map
+ * until the index is rebuilt. Both files are memory-mapped
+ */
+public class CommitGraph {
+    public static final @NotNull String RECORDS_ADDED = "Commit graph records added";
+    public static final int NO_PARENT = -1;
+
+    private static final byte[] MAGIC = {'G', 'C', 'G', 'R'};
+    private static final byte[] INDEX_MAGIC = {'G', 'C', 'G', 'I'};
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = MAGIC.length + Integer.BYTES;
+    private static final int INDEX_HEADER_SIZE = INDEX_MAGIC.length + 2 * Integer.BYTES;
+    private static final int RECORD_SIZE = ObjectId.SIZE + 3 * Integer.BYTES;
+    private static final int INDEX_ENTRY_SIZE = ObjectId.SIZE + Integer.BYTES;
+    // the index is rebuilt once this many records are outside of it
+    private static final int MAX_TAIL_SIZE = 1024;
+
+    private final Path graphFile;
+    private final Path indexFile;
+    private final CommandStatistics statistics;
+    private MappedByteBuffer records;
+    private int storedCount;
+    private MappedByteBuffer index;
+    private int indexedCount;
+    private final Map<ObjectId, Integer> tail = new HashMap<>();
+    private final List<ObjectId> pendingIds = new ArrayList<>();
+    private final List<int[]> pendingRecords = new ArrayList<>();
+
+    private CommitGraph(Path graph, Path graphIndex, CommandStatistics commandStatistics) {
+        graphFile = graph;
+        indexFile = graphIndex;
+        statistics = commandStatistics;
+    }
+
+    public static CommitGraph open(@NotNull Path graphFile, @NotNull Path indexFile, @NotNull CommandStatistics statistics) throws GitException {
+        CommitGraph graph = new CommitGraph(graphFile, indexFile, statistics);
+        graph.map();
+        return graph;
+    }
+
+    public int size() {
+        return storedCount + pendingIds.size();
+    }
+
+    /*
+     * Position of the commit or -1 if the graph doesn't contain it
+     */
+    public int find(@NotNull ObjectId commitId) {
+        Integer position = tail.get(commitId);
+        if (position != null) {
+            return position;
+        }
+        int low = 0;
+        int high = indexedCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int entry = INDEX_HEADER_SIZE + middle * INDEX_ENTRY_SIZE;
+            int comparison = compare(index, entry, commitId);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return index.getInt(entry + ObjectId.SIZE);
+            }
+        }
+        return -1;
+    }
+
+    public ObjectId getId(int position) {
+        if (position >= storedCount) {
+            return pendingIds.get(position - storedCount);
+        }
+        return readId(records, recordPosition(position));
+    }
+
+    /*
+     * Position of the first (0) or second (1) parent or NO_PARENT
+     */
+    public int getParent(int position, int parent) {
+        if (position >= storedCount) {
+            return pendingRecords.get(position - storedCount)[parent];
+        }
+        return records.getInt(recordPosition(position) + ObjectId.SIZE + parent * Integer.BYTES);
+    }
+
+    public int getGeneration(int position) {
+        if (position >= storedCount) {
+            return pendingRecords.get(position - storedCount)[2];
+        }
+        return records.getInt(recordPosition(position) + ObjectId.SIZE + 2 * Integer.BYTES);
+    }
+
+    /*
+     * Adds a commit whose parents are already in the graph, it is written on save()
+     */
+    public int add(@NotNull ObjectId commitId, int firstParent, int secondParent) {
+        int existing = find(commitId);
+        if (existing >= 0) {
+            return existing;
+        }
+        int generation = 1;
+        if (firstParent != NO_PARENT) {
+            generation = Math.max(generation, getGeneration(firstParent) + 1);
+        }
+        if (secondParent != NO_PARENT) {
+            generation = Math.max(generation, getGeneration(secondParent) + 1);
+        }
+        int position = size();
+        pendingIds.add(commitId);
+        pendingRecords.add(new int[]{firstParent, secondParent, generation});
+        tail.put(commitId, position);
+        return position;
+    }
+
+    /*
+     * Whether the first commit is reachable from the second one. Commits with a generation
+     * not greater than the ancestor's can't lead to it, so the walk stops there
+     */
+    public boolean isAncestor(int ancestor, int descendant) {
+        int ancestorGeneration = getGeneration(ancestor);
+        List<Integer> stack = new ArrayList<>();
+        Set<Integer> visited = new HashSet<>();
+        stack.add(descendant);
+        while (!stack.isEmpty()) {
+            int position = stack.remove(stack.size() - 1);
+            if (position == ancestor) {
+                return true;
+            }
+            if (getGeneration(position) <= ancestorGeneration || !visited.add(position)) {
+                continue;
+            }
+            for (int parent = 0; parent < 2; parent++) {
+                if (getParent(position, parent) != NO_PARENT) {
+                    stack.add(getParent(position, parent));
+                }
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Best common ancestor of two commits or NO_PARENT if there is none. Commits are visited
+     * from the highest generation down, marked with the sides they are reachable from, and
+     * the first one reachable from both is an ancestor no other common ancestor descends from.
+     * Only commits newer than the merge base are visited, however long the shared history is
+     */
+    public int getMergeBase(int first, int second) {
+        Map<Integer, Integer> sides = new HashMap<>();
+        PriorityQueue<Integer> queue = new PriorityQueue<>(
+                Comparator.comparingInt(this::getGeneration).thenComparingInt(position -> position).reversed());
+        sides.put(first, 1);
+        sides.merge(second, 2, (firstSide, secondSide) -> firstSide | secondSide);
+        queue.add(first);
+        if (second != first) {
+            queue.add(second);
+        }
+        while (!queue.isEmpty()) {
+            int position = queue.poll();
+            int side = sides.get(position);
+            if (side == 3) {
+                return position;
+            }
+            // parents have lower generations, so none of them has been polled yet
+            for (int parent = 0; parent < 2; parent++) {
+                int parentPosition = getParent(position, parent);
+                if (parentPosition == NO_PARENT) {
+                    continue;
+                }
+                Integer parentSide = sides.get(parentPosition);
+                if (parentSide == null) {
+                    queue.add(parentPosition);
+                    sides.put(parentPosition, side);
+                } else {
+                    sides.put(parentPosition, parentSide | side);
+                }
+            }
+        }
+        return NO_PARENT;
+    }
+
+    /*
+     * Appends new records to the graph file and rebuilds the index if the tail has grown too long
+     */
+    public void save() throws GitException {
+        if (pendingIds.isEmpty()) {
+            return;
+        }
+        try {
+            boolean exists = Files.exists(graphFile);
+            ByteBuffer buffer = ByteBuffer.allocate((exists ? 0 : HEADER_SIZE) + pendingIds.size() * RECORD_SIZE);
+            if (!exists) {
+                buffer.put(MAGIC).putInt(VERSION);
+            }
+            for (int i = 0; i < pendingIds.size(); i++) {
+                ObjectId id = pendingIds.get(i);
+                for (int word = 0; word < 4; word++) {
+                    buffer.putLong(id.getWord(word));
+                }
+                int[] record = pendingRecords.get(i);
+                buffer.putInt(record[0]).putInt(record[1]).putInt(record[2]);
+            }
+            buffer.flip();
+            try (FileChannel channel = FileChannel.open(graphFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                // a record cut off by a crash is overwritten
+                channel.position(exists ? HEADER_SIZE + (long) storedCount * RECORD_SIZE : 0);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            statistics.add(RECORDS_ADDED, pendingIds.size());
+            pendingIds.clear();
+            pendingRecords.clear();
+            map();
+            if (storedCount - indexedCount >= MAX_TAIL_SIZE) {
+                writeIndex();
+                map();
+            }
+        } catch (IOException exception) {
+            throw new GitException("Can't write commit graph");
+        }
+    }
+
+    private void writeIndex() throws IOException {
+        Integer[] positions = new Integer[storedCount];
+        for (int i = 0; i < storedCount; i++) {
+            positions[i] = i;
+        }
+        ObjectId[] ids = new ObjectId[storedCount];
+        for (int i = 0; i < storedCount; i++) {
+            ids[i] = getId(i);
+        }
+        Arrays.sort(positions, Comparator.comparing(position -> ids[position]));
+        ByteBuffer buffer = ByteBuffer.allocate(INDEX_HEADER_SIZE + storedCount * INDEX_ENTRY_SIZE);
+        buffer.put(INDEX_MAGIC).putInt(VERSION).putInt(storedCount);
+        for (int position : positions) {
+            for (int word = 0; word < 4; word++) {
+                buffer.putLong(ids[position].getWord(word));
+            }
+            buffer.putInt(position);
+        }
+        GitFiles.writeAtomically(indexFile, buffer.array());
+    }
+
+    private void map() throws GitException {
+        try {
+            records = null;
+            storedCount = 0;
+            if (Files.exists(graphFile)) {
+                records = mapFile(graphFile);
+                if (!hasHeader(records, MAGIC, HEADER_SIZE)) {
+                    throw new GitException("Corrupted commit graph " + graphFile);
+                }
+                storedCount = (records.capacity() - HEADER_SIZE) / RECORD_SIZE;
+            }
+            index = null;
+            indexedCount = 0;
+            if (Files.exists(indexFile)) {
+                MappedByteBuffer mappedIndex = mapFile(indexFile);
+                int count = hasHeader(mappedIndex, INDEX_MAGIC, INDEX_HEADER_SIZE) ? mappedIndex.getInt(INDEX_HEADER_SIZE - Integer.BYTES) : -1;
+                // an index that doesn't match the graph is ignored, the graph is the source of truth
+                if (count >= 0 && count <= storedCount && mappedIndex.capacity() == INDEX_HEADER_SIZE + count * INDEX_ENTRY_SIZE) {
+                    index = mappedIndex;
+                    indexedCount = count;
+                }
+            }
+            tail.clear();
+            for (int position = indexedCount; position < size(); position++) {
+                tail.put(getId(position), position);
+            }
+        } catch (IOException exception) {
+            throw new GitException("Can't read commit graph");
+        }
+    }
+
+    private static MappedByteBuffer mapFile(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private static boolean hasHeader(ByteBuffer buffer, byte[] magic, int headerSize) {
+        if (buffer.capacity() < headerSize) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (buffer.get(i) != magic[i]) {
+                return false;
+            }
+        }
+        return buffer.getInt(magic.length) == VERSION;
+    }
+
+    private static int recordPosition(int position) {
+        return HEADER_SIZE + position * RECORD_SIZE;
+    }
+
+    private static ObjectId readId(ByteBuffer buffer, int offset) {
+        return new ObjectId(buffer.getLong(offset), buffer.getLong(offset + Long.BYTES),
+                buffer.getLong(offset + 2 * Long.BYTES), buffer.getLong(offset + 3 * Long.BYTES));
+    }
+
+    private static int compare(ByteBuffer buffer, int offset, ObjectId id) {
+        for (int word = 0; word < 4; word++) {
+            int comparison = Long.compareUnsigned(buffer.getLong(offset + word * Long.BYTES), id.getWord(word));
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return 0;
+    }
+}
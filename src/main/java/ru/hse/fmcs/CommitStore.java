@@ -0,0 +1,132 @@
+package ru.hse.fmcs;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/*
+ * Commits are immutable, so every commit is written exactly once to its own file
+ * git/commits/ab/cdef... in the binary form of MetadataCodec. Commits of older versions
+ * are JSON, they are still read and gc rewrites them in the binary form
+ */
+public class CommitStore {
+    public static final @NotNull String COMMITS_READ = "Commits read";
+    public static final @NotNull String COMMITS_WRITTEN = "Commits written";
+    public static final @NotNull String COMMITS_CONVERTED = "Commits converted from JSON";
+
+    private static final int SHARD_PREFIX_LENGTH = 2;
+
+    private final Path commitsDirectory;
+    private final ObjectMapper objectMapper;
+    private final CommandStatistics statistics;
+
+    public CommitStore(@NotNull Path commitsDir, @NotNull ObjectMapper mapper, @NotNull CommandStatistics commandStatistics) {
+        commitsDirectory = commitsDir;
+        objectMapper = mapper;
+        statistics = commandStatistics;
+    }
+
+    public Path getCommitPath(@NotNull ObjectId commitHash) {
+        String hex = commitHash.toString();
+        return commitsDirectory.resolve(hex.substring(0, SHARD_PREFIX_LENGTH)).resolve(hex.substring(SHARD_PREFIX_LENGTH));
+    }
+
+    /*
+     * Commit with the given hash or null if there is no such commit
+     */
+    public Repository.Commit read(@NotNull ObjectId commitHash) throws GitException {
+        byte[] content;
+        try {
+            content = Files.readAllBytes(getCommitPath(commitHash));
+        } catch (NoSuchFileException exception) {
+            return null;
+        } catch (IOException exception) {
+            throw new GitException("Can't read commit " + commitHash);
+        }
+        Repository.Commit commit = decode(commitHash, content);
+        statistics.increment(COMMITS_READ);
+        return commit;
+    }
+
+    public boolean contains(@NotNull ObjectId commitHash) {
+        return Files.exists(getCommitPath(commitHash));
+    }
+
+    /*
+     * Writes the commit to a temporary file and renames it, so readers never see a half-written commit
+     */
+    public void write(@NotNull Repository.Commit commit) throws GitException {
+        Path commitFile = getCommitPath(commit.getCommitHash());
+        if (Files.exists(commitFile)) {
+            return;
+        }
+        try {
+            GitFiles.writeAtomically(commitFile, MetadataCodec.encodeCommit(commit));
+            statistics.increment(COMMITS_WRITTEN);
+        } catch (IOException exception) {
+            throw new GitException("Can't write commit " + commit.getCommitHash());
+        }
+    }
+
+    /*
+     * Rewrites commits stored as JSON in the binary form
+     */
+    public void convertLegacyCommits() throws GitException {
+        int converted = 0;
+        for (ObjectId commitHash : listCommitHashes()) {
+            Path commitFile = getCommitPath(commitHash);
+            try {
+                byte[] content = Files.readAllBytes(commitFile);
+                if (!MetadataCodec.isCommit(content)) {
+                    GitFiles.writeAtomically(commitFile, MetadataCodec.encodeCommit(decode(commitHash, content)));
+                    converted++;
+                }
+            } catch (IOException exception) {
+                throw new GitException("Can't convert commit " + commitHash);
+            }
+        }
+        statistics.add(COMMITS_CONVERTED, converted);
+    }
+
+    public List<ObjectId> listCommitHashes() throws GitException {
+        List<ObjectId> commitHashes = new ArrayList<>();
+        if (!Files.isDirectory(commitsDirectory)) {
+            return commitHashes;
+        }
+        try (Stream<Path> shards = Files.list(commitsDirectory)) {
+            for (Path shard : (Iterable<Path>) shards::iterator) {
+                if (!Files.isDirectory(shard)) {
+                    continue;
+                }
+                String prefix = shard.getFileName().toString();
+                try (Stream<Path> commits = Files.list(shard)) {
+                    commits.map(commit -> prefix + commit.getFileName().toString())
+                            .filter(ObjectId::isValid)
+                            .map(ObjectId::fromString)
+                            .forEach(commitHashes::add);
+                }
+            }
+        } catch (IOException exception) {
+            throw new GitException("Can't list commits");
+        }
+        return commitHashes;
+    }
+
+    private Repository.Commit decode(ObjectId commitHash, byte[] content) throws GitException {
+        if (MetadataCodec.isCommit(content)) {
+            return MetadataCodec.decodeCommit(content);
+        }
+        try {
+            return objectMapper.readValue(content, Repository.Commit.class);
+        } catch (IOException exception) {
+            throw new GitException("Can't read commit " + commitHash);
+        }
+    }
+}
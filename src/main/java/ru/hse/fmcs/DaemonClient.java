@@ -0,0 +1,81 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/*
+ * Client side of the daemon: the command and its arguments are sent as a count followed by
+ * the strings, the daemon answers with the command output and closes the connection. Nothing
+ * of the repository is loaded here
+ */
+public final class DaemonClient {
+    private DaemonClient() {}
+
+    public static boolean isRunning(@NotNull String workingDirectory) {
+        try (SocketChannel ignored = connect(workingDirectory)) {
+            return ignored != null;
+        } catch (IOException exception) {
+            return false;
+        }
+    }
+
+    /*
+     * Runs the command in the daemon of the repository and copies its output.
+     * Returns false without doing anything if no daemon is running
+     */
+    public static boolean run(@NotNull String workingDirectory, @NotNull String command, @NotNull List<String> arguments,
+                              @NotNull PrintStream outputStream) throws GitException {
+        SocketChannel channel;
+        try {
+            channel = connect(workingDirectory);
+        } catch (IOException exception) {
+            return false;
+        }
+        if (channel == null) {
+            return false;
+        }
+        try (channel) {
+            DataOutputStream request = new DataOutputStream(Channels.newOutputStream(channel));
+            request.writeInt(arguments.size() + 1);
+            request.writeUTF(command);
+            for (String argument : arguments) {
+                request.writeUTF(argument);
+            }
+            request.flush();
+            InputStream response = Channels.newInputStream(channel);
+            response.transferTo(outputStream);
+            outputStream.flush();
+            return true;
+        } catch (IOException exception) {
+            throw new GitException("Connection to the daemon was lost");
+        }
+    }
+
+    // null if there is no socket, a socket nobody listens on fails to connect
+    private static SocketChannel connect(String workingDirectory) throws IOException {
+        Path socketFile = Paths.get(workingDirectory, GitConstants.DAEMON_SOCKET_FILE);
+        if (!Files.exists(socketFile)) {
+            return null;
+        }
+        SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            channel.connect(UnixDomainSocketAddress.of(socketFile));
+        } catch (IOException exception) {
+            channel.close();
+            throw exception;
+        }
+        return channel;
+    }
+}
@@ -1,5 +1,11 @@
 package ru.hse.fmcs;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -10,14 +16,46 @@ public class Git {
             System.out.println("Not enough arguments");
             return;
         }
-        GitCli gitCli = new GitCliImpl(args[0]);
         List<String> arguments = new ArrayList<String>();
         arguments.addAll(Arrays.asList(args).subList(2, args.length));
-        gitCli.setOutputStream(System.out);
         try {
+            // a batch is passed on as the lines of its script, from the file or from stdin
+            if (args[1].equals(GitConstants.BATCH)) {
+                arguments = readScript(arguments.isEmpty() ? null : arguments.get(0));
+            }
+            if (args[1].equals(GitConstants.DAEMON)) {
+                new GitDaemon(args[0]).run();
+                return;
+            }
+            // a running daemon executes the command with its state already loaded
+            if (DaemonClient.run(args[0], args[1], arguments, System.out)) {
+                return;
+            }
+            if (args[1].equals(GitConstants.DAEMON_STOP)) {
+                System.out.println("Daemon isn't running");
+                return;
+            }
+            GitCli gitCli = new GitCliImpl(args[0]);
+            gitCli.setOutputStream(System.out);
             gitCli.runCommand(args[1], arguments);
         } catch (GitException exception) {
             System.out.println(exception.getMessage());
         }
     }
+
+    private static List<String> readScript(String file) throws GitException {
+        try {
+            if (file != null) {
+                return Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8);
+            }
+            List<String> lines = new ArrayList<>();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                lines.add(line);
+            }
+            return lines;
+        } catch (IOException exception) {
+            throw new GitException("Can't read batch script" + (file == null ? "" : " " + file));
+        }
+    }
 }
@@ -11,6 +11,12 @@ public interface GitCli {
      */
     void runCommand(@NotNull String command, @NotNull List<@NotNull String> arguments) throws GitException;
 
+    /*
+     * Запусти по порядку команды [commands], первый элемент каждой - имя команды, остальные - аргументы.
+     * Изменения сохраняются один раз в конце, если какая-то команда упала, не сохраняется ничего
+     */
+    void runCommands(@NotNull List<@NotNull List<@NotNull String>> commands) throws GitException;
+
     /*
      * Установить outputStream, в который будет выводиться лог
      */
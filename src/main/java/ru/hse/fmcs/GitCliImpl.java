@@ -8,11 +8,19 @@ import org.jetbrains.annotations.NotNull;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 public class GitCliImpl implements GitCli {
+    // commands that never change the metainfo, they take the repository lock shared
+    private static final Set<String> READ_ONLY_COMMANDS = Set.of(GitConstants.LOG, GitConstants.STATUS,
+            GitConstants.SHOW_BRANCHES);
+
+
     private final String workingDirectory;
     private PrintStream outputStream;
+    private RepositorySession lastSession;
     ObjectMapper objectMapper = new ObjectMapper();
 
     GitCliImpl(String workingDir) {
@@ -20,7 +28,155 @@ public class GitCliImpl implements GitCli {
     }
 
     public void runCommand(@NotNull String command, @NotNull List<@NotNull String> arguments) throws GitException {
-        GitCommands gitCommands = new GitCommands(workingDirectory, outputStream);
+        runLocked(isReadOnly(command, arguments), session -> {
+            runCommand(session, command, arguments);
+            return null;
+        });
+    }
+
+    /*
+     * Запусти по порядку команды [commands], первый элемент каждой - имя команды, остальные - аргументы.
+     * Изменения сохраняются один раз в конце, если какая-то команда упала, не сохраняется ничего
+     */
+    public void runCommands(@NotNull List<@NotNull List<@NotNull String>> commands) throws GitException {
+        runLocked(isReadOnly(commands), session -> {
+            runCommands(session, commands);
+            return null;
+        });
+    }
+
+    /*
+     * Runs the command on a session that may already hold loaded state, the daemon keeps one
+     * session for many commands. A batch comes as its script lines. The caller holds the
+     * repository lock and clears the statistics of a reused session
+     */
+    void runCommand(@NotNull RepositorySession session, @NotNull String command, @NotNull List<@NotNull String> arguments)
+            throws GitException {
+        if (command.equals(GitConstants.BATCH)) {
+            runCommands(session, parseScript(arguments));
+            return;
+        }
+        lastSession = session;
+        runCommand(new GitCommands(session, outputStream), command, arguments);
+        session.flush();
+        if (Boolean.getBoolean(GitConstants.STATISTICS_PROPERTY)) {
+            session.getStatistics().print(outputStream);
+        }
+    }
+
+    /*
+     * All commands share the loaded state and nothing is flushed until the last of them is done.
+     * If one fails, the session is dropped by the caller with the metainfo on disk as it was before
+     * the batch. Objects written by the earlier commands stay unreferenced until gc, files they
+     * changed in the working tree are not restored
+     */
+    void runCommands(@NotNull RepositorySession session, @NotNull List<@NotNull List<@NotNull String>> commands)
+            throws GitException {
+        lastSession = session;
+        for (int i = 0; i < commands.size(); i++) {
+            List<String> command = commands.get(i);
+            if (command.isEmpty() || command.get(0).equals(GitConstants.BATCH)) {
+                throw new GitException("Batch rolled back, command " + (i + 1) + " is not a git command");
+            }
+            try {
+                runCommand(new GitCommands(session, outputStream), command.get(0), command.subList(1, command.size()));
+            } catch (GitException exception) {
+                throw new GitException("Batch rolled back, command " + (i + 1) + " failed: " + exception.getMessage(),
+                        exception);
+            }
+        }
+        session.flush();
+        if (Boolean.getBoolean(GitConstants.STATISTICS_PROPERTY)) {
+            session.getStatistics().print(outputStream);
+        }
+    }
+
+    // runs the action on a fresh session while holding the repository lock
+    private <T> T runLocked(boolean readOnly, SessionAction<T> action) throws GitException {
+        RepositorySession session = new RepositorySession(workingDirectory);
+        try {
+            RepositoryLock lock = RepositoryLock.acquire(workingDirectory, isShared(workingDirectory, readOnly),
+                    session.getStatistics());
+            try {
+                return action.run(session);
+            } finally {
+                lock.close();
+            }
+        } finally {
+            session.close();
+        }
+    }
+
+    private interface SessionAction<T> {
+        T run(RepositorySession session) throws GitException;
+    }
+
+    /*
+     * Whether a command takes the repository lock shared: it only reads and loading the
+     * repository doesn't migrate it to the current format
+     */
+    static boolean isShared(@NotNull String workingDirectory, boolean readOnly) throws GitException {
+        return readOnly && !RepositorySession.needsMigration(workingDirectory);
+    }
+
+    static boolean isReadOnly(@NotNull String command, @NotNull List<@NotNull String> arguments) throws GitException {
+        return command.equals(GitConstants.BATCH) ? isReadOnly(parseScript(arguments)) : READ_ONLY_COMMANDS.contains(command);
+    }
+
+    static boolean isReadOnly(@NotNull List<@NotNull List<@NotNull String>> commands) {
+        return commands.stream().allMatch(command -> !command.isEmpty() && READ_ONLY_COMMANDS.contains(command.get(0)));
+    }
+
+    /*
+     * One command per line, arguments are separated by spaces, an argument with spaces is put in
+     * double quotes with \" and \\ inside. Empty lines and lines starting with # are skipped
+     */
+    static List<List<String>> parseScript(@NotNull List<@NotNull String> lines) throws GitException {
+        List<List<String>> commands = new ArrayList<>();
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            List<String> command = new ArrayList<>();
+            StringBuilder argument = null;
+            boolean quoted = false;
+            for (int j = 0; j < line.length(); j++) {
+                char c = line.charAt(j);
+                if (quoted) {
+                    if (c == '"') {
+                        quoted = false;
+                    } else if (c == '\\' && j + 1 < line.length()) {
+                        argument.append(line.charAt(++j));
+                    } else {
+                        argument.append(c);
+                    }
+                } else if (Character.isWhitespace(c)) {
+                    if (argument != null) {
+                        command.add(argument.toString());
+                        argument = null;
+                    }
+                } else {
+                    if (argument == null) {
+                        argument = new StringBuilder();
+                    }
+                    if (c == '"') {
+                        quoted = true;
+                    } else {
+                        argument.append(c);
+                    }
+                }
+            }
+            if (quoted) {
+                throw new GitException("Unclosed quote in line " + (i + 1) + " of the batch");
+            }
+            command.add(argument.toString());
+            commands.add(command);
+        }
+        return commands;
+    }
+
+    private void runCommand(GitCommands gitCommands, String command, List<String> arguments) throws GitException {
         if (command.equals(GitConstants.INIT)) {
             gitCommands.init();
             return;
@@ -34,17 +190,34 @@ public class GitCliImpl implements GitCli {
             return;
         }
         if (command.equals(GitConstants.LOG)) {
-            if (arguments.isEmpty()) {
-                gitCommands.log(null);
-            } else {
-                gitCommands.log(arguments.get(0));
+            int maxCount = Integer.MAX_VALUE;
+            if (arguments.size() >= 2 && arguments.get(0).equals("-n")) {
+                maxCount = parseCount(arguments.get(1));
+                arguments = arguments.subList(2, arguments.size());
             }
+            gitCommands.log(arguments.isEmpty() ? null : arguments.get(0), maxCount);
             return;
         }
         if (command.equals(GitConstants.RESET)) {
             gitCommands.reset(arguments.get(0));
             return;
         }
+        if (command.equals(GitConstants.GC)) {
+            gitCommands.gc();
+            return;
+        }
+        if (command.equals(GitConstants.BRANCH_CREATE)) {
+            gitCommands.createBranch(arguments.get(0));
+            return;
+        }
+        if (command.equals(GitConstants.BRANCH_REMOVE)) {
+            gitCommands.removeBranch(arguments.get(0));
+            return;
+        }
+        if (command.equals(GitConstants.SHOW_BRANCHES)) {
+            gitCommands.showBranches();
+            return;
+        }
         if (gitCommands.wasHeadDetached()) {
             outputStream.println("Error while performing " + command + ": Head is detached");
             return;
@@ -58,11 +231,26 @@ public class GitCliImpl implements GitCli {
         if (command.equals(GitConstants.RM)) {
             gitCommands.remove(arguments);
         }
+        if (command.equals(GitConstants.MERGE)) {
+            gitCommands.merge(arguments.get(0));
+        }
         if (command.equals(GitConstants.STATUS)) {
             gitCommands.status();
         }
     }
 
+    private static int parseCount(String count) throws GitException {
+        try {
+            int value = Integer.parseInt(count);
+            if (value > 0) {
+                return value;
+            }
+        } catch (NumberFormatException ignored) {
+            // reported below
+        }
+        throw new GitException("Invalid number of commits: " + count);
+    }
+
     /*
      * Установить outputStream, в который будет выводиться лог
      */
@@ -74,7 +262,17 @@ public class GitCliImpl implements GitCli {
      * Вернуть хеш n-го перед HEAD коммита
      */
     public @NotNull String getRelativeRevisionFromHead(int n) throws GitException {
-        GitCommands gitCommands = new GitCommands(workingDirectory, outputStream);
-        return gitCommands.getCommit("HEAD~" + n).getCommitHash();
+        return runLocked(true, session -> {
+            lastSession = session;
+            GitCommands gitCommands = new GitCommands(session, outputStream);
+            return gitCommands.resolveRevision("HEAD~" + n).toString();
+        });
+    }
+
+    /*
+     * Counters (repository loads and saves, etc.) of the last executed command
+     */
+    public CommandStatistics getLastCommandStatistics() {
+        return lastSession == null ? new CommandStatistics() : lastSession.getStatistics();
     }
 }
@@ -1,8 +1,5 @@
 package ru.hse.fmcs;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.hash.Hashing;
-import org.apache.commons.io.FileUtils;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.*;
@@ -12,13 +9,14 @@ import java.nio.file.Paths;
 import java.util.*;
 
 public class GitCommands {
-
     private final String workingDirectory;
     private final PrintStream outputStream;
+    private final RepositorySession session;
     private Repository repository;
 
-    GitCommands(String workingDir, PrintStream output) {
-        workingDirectory = workingDir;
+    GitCommands(RepositorySession repositorySession, PrintStream output) {
+        session = repositorySession;
+        workingDirectory = repositorySession.getWorkingDirectory();
         outputStream = output;
     }
 
@@ -32,62 +30,74 @@ public class GitCommands {
             Path commitsDirectory = Paths.get(workingDirectory + GitConstants.COMMITS_DIRECTORY);
             Files.createDirectories(blobsDirectory);
             Files.createDirectories(commitsDirectory);
-            repository = new Repository(workingDirectory);
+            Files.createDirectories(Paths.get(workingDirectory + GitConstants.TREES_DIRECTORY));
+            GitConfig config = session.getConfig();
+            if (config.get(GitConfig.COMPRESSION, null) == null) {
+                config.set(GitConfig.COMPRESSION, GitConstants.DEFAULT_COMPRESSION);
+            }
+            config.set(GitConfig.BLOB_LAYOUT, GitConfig.SHARDED_LAYOUT);
+            config.save();
+            repository = session.createRepository();
             outputStream.println("Project initialized");
-            writeRepositoryToFiles();
         } catch (IOException exception) {
             throw new GitException("Error while creating a .git directory\n");
         }
     }
 
     public void add(@NotNull List<String> filePaths) throws GitException {
-        repository = initRepositoryFromFiles();
-        for (String filePath : filePaths) {
-            String fileHash = getFileHash(workingDirectory + "/" + filePath);
-            createCopyOfFile(workingDirectory + "/" + filePath, workingDirectory + GitConstants.BLOBS_DIRECTORY + "/" + fileHash);
-            repository.getStagingArea().addFile(filePath, fileHash);
+        repository = session.getRepository();
+        int workers = session.getConfig().getInt(GitConfig.ADD_WORKERS, Runtime.getRuntime().availableProcessors());
+        AddPipeline pipeline = new AddPipeline(workingDirectory, session.getBlobStore(), session.getIndex(), workers,
+                session.getStatistics());
+        List<String> files = pipeline.expand(filePaths, IgnoreRules.load(workingDirectory, session.getConfig()));
+        List<String> fileHashes = pipeline.write(files);
+        for (int i = 0; i < files.size(); i++) {
+            repository.getStagingArea().addFile(files.get(i), fileHashes.get(i));
         }
         outputStream.println("Add completed successful");
-        writeRepositoryToFiles();
+        session.markChanged();
     }
 
     public void remove(@NotNull List<String> filePaths) throws GitException {
-        repository = initRepositoryFromFiles();
+        repository = session.getRepository();
         for (String filePath : filePaths) {
             repository.getStagingArea().deleteFile(filePath);
         }
         outputStream.println("Rm completed successful");
-        writeRepositoryToFiles();
+        session.markChanged();
     }
 
     public void commit(String message) throws GitException {
-        repository = initRepositoryFromFiles();
-        Repository.Commit newCommit = new Repository.Commit(message, repository.getHead(), repository.getStagingArea());
-        repository.getCommits().put(newCommit.getCommitHash(), newCommit);
+        repository = session.getRepository();
+        ObjectId tree = repository.writeTree(repository.getHead(), repository.getStagingArea());
+        Repository.Commit newCommit = new Repository.Commit(message, repository.getHead(), repository.getMergeHead(), tree);
+        repository.addCommit(newCommit);
+        repository.setMergeHead(null);
         repository.setStagingArea(new Repository.StagingArea());
-        repository.getHead().setNextCommit(newCommit.getCommitHash());
-        repository.getCommits().put(repository.getHead().getCommitHash(), repository.getHead());
         repository.setHead(newCommit);
+        repository.getRefs().update(repository.getCurrentBranch(), newCommit.getCommitHash());
         outputStream.println("Files committed");
-        writeRepositoryToFiles();
+        session.markChanged();
     }
 
     public void checkout(String option) throws GitException {
-        repository = initRepositoryFromFiles();
+        repository = session.getRepository();
         Repository.Commit commitToCheckout = getCommit(option);
         changeLocalFiles(commitToCheckout);
         repository.setHead(commitToCheckout);
+        repository.setMergeHead(null);
+        repository.setCurrentBranch(repository.getRefs().resolve(option) != null ? option : null);
         outputStream.println("Checkout completed successful");
-        writeRepositoryToFiles();
+        session.markChanged();
     }
 
     public boolean wasHeadDetached() throws GitException {
-        repository = initRepositoryFromFiles();
-        return !repository.getHead().getNextCommit().isEmpty();
+        repository = session.getRepository();
+        return repository.getCurrentBranch() == null;
     }
 
     public void checkout(@NotNull List<String> filesToCheckout) throws GitException {
-        repository = initRepositoryFromFiles();
+        repository = session.getRepository();
         for (String currentFilePath : filesToCheckout) {
             if (currentFilePath.equals("--")) {
                 continue;
@@ -96,50 +106,69 @@ public class GitCommands {
             changeOneLocalFile(currentFilePath);
         }
         outputStream.println("Checkout completed successful");
-        writeRepositoryToFiles();
+        session.markChanged();
     }
 
     public Repository.Commit getCommit(@NotNull String option) throws GitException {
-        repository = initRepositoryFromFiles();
-        Repository.Commit commitToCheckout = repository.getHead();
+        ObjectId commitHash = resolveRevision(option);
+        return repository.getCommit(commitHash);
+    }
+
+    /*
+     * Hash of the commit the option names: HEAD~n, a branch or a commit hash. HEAD~n is found
+     * in the commit graph, so no commit is read on the way
+     */
+    public ObjectId resolveRevision(@NotNull String option) throws GitException {
+        repository = session.getRepository();
         if (option.startsWith("HEAD~")) {
             int numberOfCommits = Integer.parseInt(option.substring(5));
-            for (int i = 0; i < numberOfCommits; i++) {
-                if (commitToCheckout == null) {
-                    throw new GitException("Given number of commits is greater than a real number of commits");
-                }
-                commitToCheckout = repository.getCommits().get(commitToCheckout.getPreviousCommit());
+            ObjectId ancestor = repository.getAncestor(repository.getHead().getCommitHash(), numberOfCommits);
+            if (ancestor == null) {
+                throw new GitException("Given number of commits is greater than a real number of commits");
             }
-        } else if (option.equals("master")) {
-            while (!commitToCheckout.getNextCommit().isEmpty()) {
-                commitToCheckout = repository.getCommits().get(commitToCheckout.getNextCommit());
-            }
-        } else {
-            if (repository.getCommits().get(option) == null) {
-                throw new GitException("There are no commits with given hash");
-            }
-            commitToCheckout = repository.getCommits().get(option);
+            return ancestor;
         }
-        return commitToCheckout;
+        ObjectId branchTip = repository.getRefs().resolve(option);
+        if (branchTip != null) {
+            return branchTip;
+        }
+        ObjectId commitHash = ObjectId.isValid(option) ? ObjectId.fromString(option) : null;
+        if (commitHash == null || !repository.hasCommit(commitHash)) {
+            throw new GitException("There are no commits with given hash");
+        }
+        return commitHash;
     }
 
+    /*
+     * Moves the current branch and HEAD to the revision. A detached HEAD is attached back to master,
+     * as when master was the only branch, so commits can be made right after the reset
+     */
     public void reset(String option) throws GitException {
-        repository = initRepositoryFromFiles();
+        repository = session.getRepository();
         Repository.Commit commitToReset = getCommit(option);
         changeLocalFiles(commitToReset);
         repository.setHead(commitToReset);
-        repository.getHead().setNextCommit("");
+        repository.setMergeHead(null);
+        if (repository.getCurrentBranch() == null && repository.getRefs().resolve(GitConstants.MASTER) != null) {
+            repository.setCurrentBranch(GitConstants.MASTER);
+        }
+        if (repository.getCurrentBranch() != null) {
+            repository.getRefs().update(repository.getCurrentBranch(), commitToReset.getCommitHash());
+        }
         outputStream.println("Reset successful");
-        writeRepositoryToFiles();
+        session.markChanged();
     }
 
-    public void log(String option) throws GitException {
-        repository = initRepositoryFromFiles();
-        Repository.Commit currentCommit = repository.getHead();
-        if (option != null) {
-            currentCommit = getCommit(option);
-        }
-        while (currentCommit != null) {
+    /*
+     * Prints at most maxCount commits of the history starting from the revision or HEAD. Commits
+     * are printed as they are read, so only the printed ones are loaded
+     */
+    public void log(String option, int maxCount) throws GitException {
+        repository = session.getRepository();
+        ObjectId currentHash = option == null ? repository.getHead().getCommitHash() : resolveRevision(option);
+        // the history comes from the commit graph, commits are read only to print them
+        for (int printed = 1; currentHash != null; printed++) {
+            Repository.Commit currentCommit = repository.getCommit(currentHash);
 //            outputStream.println("Commit " + currentCommit.commitHash); // uncomment when run through command line
             outputStream.println("Commit " + "COMMIT_HASH"); // Need to pass tests
             outputStream.println("Author: " + currentCommit.getUser());
@@ -147,10 +176,178 @@ public class GitCommands {
             outputStream.println("Date: " + "COMMIT_DATE"); // Need to pass tests
             outputStream.println();
             outputStream.println(currentCommit.getMessage());
-            if (!currentCommit.getPreviousCommit().isEmpty()) {
+            currentHash = printed < maxCount ? repository.getAncestor(currentHash, 1) : null;
+            if (currentHash != null) {
                 outputStream.println();
             }
-            currentCommit = repository.getCommits().get(currentCommit.getPreviousCommit());
+        }
+    }
+
+    /*
+     * Merges the branch (or any commit) into the current branch. If HEAD is behind it, HEAD just
+     * moves forward. Otherwise the trees are merged against the merge base: a clean result is
+     * committed at once, a result with conflicts is left in the working tree with everything
+     * else staged, and the next commit becomes the merge commit
+     */
+    public void merge(@NotNull String option) throws GitException {
+        repository = session.getRepository();
+        if (repository.getMergeHead() != null) {
+            throw new GitException("Merge is in progress, commit the result or reset first");
+        }
+        Repository.StagingArea stagingArea = repository.getStagingArea();
+        if (!stagingArea.getAddedFiles().isEmpty() || !stagingArea.getDeletedFiles().isEmpty()) {
+            throw new GitException("Commit or reset staged changes before merge");
+        }
+        ObjectId ours = repository.getHead().getCommitHash();
+        ObjectId theirs = resolveRevision(option);
+        // the ancestry walks stop below the generation of the ancestor, the merge base is needed only for a real merge
+        if (repository.isAncestor(theirs, ours)) {
+            outputStream.println("Already up to date");
+            return;
+        }
+        if (repository.isAncestor(ours, theirs)) {
+            Repository.Commit theirCommit = repository.getCommit(theirs);
+            ObjectId ourTree = repository.getTreeHash(repository.getHead());
+            Map<String, String> changes = repository.getTreeStore().diff(ourTree, repository.getTreeHash(theirCommit));
+            checkLocalChanges(changes, ourTree);
+            applyChanges(changes);
+            repository.setHead(theirCommit);
+            repository.getRefs().update(repository.getCurrentBranch(), theirs);
+            outputStream.println("Fast-forward");
+            session.markChanged();
+            return;
+        }
+        ObjectId mergeBase = repository.getMergeBase(ours, theirs);
+        TreeStore treeStore = repository.getTreeStore();
+        ObjectId ourTree = repository.getTreeHash(repository.getHead());
+        ObjectId baseTree = mergeBase == null ? null : repository.getTreeHash(repository.getCommit(mergeBase));
+        TreeMerger merger = new TreeMerger(treeStore, session.getBlobStore(), repository.getCurrentBranch(), option,
+                session.getStatistics());
+        ObjectId mergedTree = merger.merge(baseTree, ourTree, repository.getTreeHash(repository.getCommit(theirs)));
+        Map<String, String> changes = treeStore.diff(ourTree, mergedTree);
+        checkLocalChanges(changes, ourTree);
+        applyChanges(changes);
+        if (merger.getConflicts().isEmpty()) {
+            Repository.Commit mergeCommit = new Repository.Commit("Merge branch '" + option + "'", repository.getHead(),
+                    theirs, mergedTree);
+            repository.addCommit(mergeCommit);
+            repository.setHead(mergeCommit);
+            repository.getRefs().update(repository.getCurrentBranch(), mergeCommit.getCommitHash());
+            outputStream.println("Merge completed successful");
+        } else {
+            for (Map.Entry<String, String> change : changes.entrySet()) {
+                if (merger.getConflicts().contains(change.getKey())) {
+                    continue;
+                }
+                if (change.getValue() == null) {
+                    stagingArea.deleteFile(change.getKey());
+                } else {
+                    stagingArea.addFile(change.getKey(), change.getValue());
+                }
+            }
+            repository.setMergeHead(theirs);
+            outputStream.println("Automatic merge failed, fix conflicts and commit the result:");
+            for (String conflict : merger.getConflicts()) {
+                outputStream.println("    " + conflict);
+            }
+        }
+        session.markChanged();
+    }
+
+    // files the merge writes must not have local changes, they would be lost
+    private void checkLocalChanges(Map<String, String> changes, ObjectId ourTree) throws GitException {
+        TreeStore treeStore = repository.getTreeStore();
+        for (String filePath : changes.keySet()) {
+            String expectedHash = treeStore.find(ourTree, filePath);
+            String actualHash = Files.exists(Paths.get(workingDirectory, filePath))
+                    ? session.getIndex().getFileHash(filePath, session.getBlobStore()::hash)
+                    : null;
+            if (!Objects.equals(expectedHash, actualHash)) {
+                throw new GitException("Local changes to " + filePath + " would be overwritten by merge");
+            }
+        }
+    }
+
+    /*
+     * Creates a branch at HEAD and switches to it
+     */
+    public void createBranch(@NotNull String branchName) throws GitException {
+        repository = session.getRepository();
+        if (!RefStore.isValidName(branchName) || branchName.equals("HEAD")) {
+            throw new GitException("Invalid branch name " + branchName);
+        }
+        if (repository.getRefs().resolve(branchName) != null) {
+            throw new GitException("Branch " + branchName + " already exists");
+        }
+        repository.getRefs().update(branchName, repository.getHead().getCommitHash());
+        repository.setCurrentBranch(branchName);
+        outputStream.println("Branch " + branchName + " created successfully");
+        outputStream.println("You can checkout it with 'checkout " + branchName + "'");
+        session.markChanged();
+    }
+
+    public void removeBranch(@NotNull String branchName) throws GitException {
+        repository = session.getRepository();
+        if (repository.getRefs().resolve(branchName) == null) {
+            throw new GitException("Branch " + branchName + " doesn't exist");
+        }
+        if (branchName.equals(repository.getCurrentBranch())) {
+            throw new GitException("Can't remove the current branch " + branchName);
+        }
+        repository.getRefs().delete(branchName);
+        outputStream.println("Branch " + branchName + " removed successfully");
+        session.markChanged();
+    }
+
+    // master goes first, other branches follow by name
+    public void showBranches() throws GitException {
+        repository = session.getRepository();
+        SortedMap<String, ObjectId> branches = repository.getRefs().list();
+        outputStream.println("Available branches:");
+        if (branches.containsKey(GitConstants.MASTER)) {
+            outputStream.println(GitConstants.MASTER);
+        }
+        for (String branch : branches.keySet()) {
+            if (!branch.equals(GitConstants.MASTER)) {
+                outputStream.println(branch);
+            }
+        }
+    }
+
+    public void gc() throws GitException {
+        repository = session.getRepository();
+        Map<String, Set<String>> versionsByPath = new LinkedHashMap<>();
+        addVersions(versionsByPath, repository.getStagingArea().getAddedFiles());
+        Set<ObjectId> visitedCommits = new HashSet<>();
+        List<ObjectId> tips = new ArrayList<>();
+        tips.add(repository.getHead().getCommitHash());
+        tips.addAll(repository.getRefs().list().values());
+        for (ObjectId tip : tips) {
+            Repository.Commit currentCommit = repository.getCommit(tip);
+            while (currentCommit != null && visitedCommits.add(currentCommit.getCommitHash())) {
+                addVersions(versionsByPath, repository.getTrackedFiles(currentCommit));
+                currentCommit = repository.getCommit(currentCommit.getPreviousCommit());
+            }
+        }
+        for (ObjectId commitHash : repository.getCommitHashes()) {
+            if (!visitedCommits.contains(commitHash)) {
+                addVersions(versionsByPath, repository.getTrackedFiles(repository.getCommit(commitHash)));
+            }
+        }
+        Map<String, List<String>> versions = new LinkedHashMap<>();
+        for (Map.Entry<String, Set<String>> pathVersions : versionsByPath.entrySet()) {
+            versions.put(pathVersions.getKey(), new ArrayList<>(pathVersions.getValue()));
+        }
+        repository.getRefs().pack();
+        repository.convertLegacyCommits();
+        session.getBlobStore().repack(versions, session.getConfig().getInt(GitConfig.PACK_DEPTH, GitConstants.DEFAULT_PACK_DEPTH));
+        outputStream.println("Packed " + session.getStatistics().get(RepositoryBlobStore.BLOBS_PACKED) + " blobs, "
+                + session.getStatistics().get(RepositoryBlobStore.DELTAS_PACKED) + " of them as deltas");
+    }
+
+    private static void addVersions(Map<String, Set<String>> versionsByPath, Map<String, String> files) {
+        for (Map.Entry<String, String> file : files.entrySet()) {
+            versionsByPath.computeIfAbsent(file.getKey(), path -> new LinkedHashSet<>()).add(file.getValue());
         }
     }
 
@@ -162,16 +359,17 @@ public class GitCommands {
     }
 
     private boolean printFilesNotStagedForCommit() throws GitException {
-        repository = initRepositoryFromFiles();
+        repository = session.getRepository();
         Set<String> modifiedFiles = new HashSet<>();
         Set<String> deletedFiles = new HashSet<>();
-        for (String file : repository.getHead().getTrackedFiles().keySet()) {
+        Map<String, String> headFiles = repository.getTrackedFiles(repository.getHead());
+        for (String file : headFiles.keySet()) {
             if (repository.getStagingArea().getAddedFiles().containsKey(file)) {
                 continue;
             }
             try {
-                String fileHash = getFileHash(workingDirectory + "/" + file);
-                if (!fileHash.equals(repository.getHead().getTrackedFiles().get(file))) {
+                String fileHash = session.getIndex().getFileHash(file, session.getBlobStore()::hash);
+                if (!fileHash.equals(headFiles.get(file))) {
                     modifiedFiles.add(file);
                 }
             } catch (GitException ignored) {
@@ -201,29 +399,39 @@ public class GitCommands {
     }
 
     private boolean printUntrackedFiles() throws GitException {
-        Set<String> untrackedFiles = new HashSet<>();
-        getUntrackedFiles("", untrackedFiles);
-        if (untrackedFiles.isEmpty()) {
-            return true;
-        }
-        outputStream.println("Untracked files:");
-        outputStream.println();
-        for (String file : untrackedFiles) {
+        repository = session.getRepository();
+        Map<String, String> headFiles = repository.getTrackedFiles(repository.getHead());
+        Repository.StagingArea stagingArea = repository.getStagingArea();
+        boolean[] hasUntrackedFiles = {false};
+        WorktreeScanner scanner = new WorktreeScanner(workingDirectory, IgnoreRules.load(workingDirectory, session.getConfig()),
+                session.getStatistics());
+        scanner.scan(file -> (!headFiles.containsKey(file) && !stagingArea.getAddedFiles().containsKey(file))
+                || stagingArea.getDeletedFiles().contains(file), file -> {
+            if (!hasUntrackedFiles[0]) {
+                outputStream.println("Untracked files:");
+                outputStream.println();
+                hasUntrackedFiles[0] = true;
+            }
             outputStream.println("    " + file);
+        });
+        if (!hasUntrackedFiles[0]) {
+            return true;
         }
         outputStream.println();
         return false;
     }
 
     private boolean printFilesToBeCommitted() throws GitException {
-        repository = initRepositoryFromFiles();
-        outputStream.println("Current branch is 'master'");
+        repository = session.getRepository();
+        outputStream.println("Current branch is '" + repository.getCurrentBranch() + "'");
         if (repository.getStagingArea().getAddedFiles().size() != 0) {
             outputStream.println("Ready to commit:");
             outputStream.println();
+            Map<String, String> headFiles = repository.getTrackedFiles(repository.getHead());
+            Set<String> addedFiles = new TreeSet<>(repository.getStagingArea().getAddedFiles().keySet());
             boolean newFileWasAlready = false;
-            for (String file : repository.getStagingArea().getAddedFiles().keySet()) {
-                if (repository.getHead().getTrackedFiles().get(file) == null) {
+            for (String file : addedFiles) {
+                if (headFiles.get(file) == null) {
                     if (!newFileWasAlready) {
                         outputStream.println("New files:");
                         newFileWasAlready = true;
@@ -233,8 +441,8 @@ public class GitCommands {
             }
             outputStream.println();
             boolean modifiedFileWasAlready = false;
-            for (String file : repository.getStagingArea().getAddedFiles().keySet()) {
-                if (repository.getHead().getTrackedFiles().get(file) != null) {
+            for (String file : addedFiles) {
+                if (headFiles.get(file) != null) {
                     if (!modifiedFileWasAlready) {
                         outputStream.println("    Modified files:");
                         modifiedFileWasAlready = true;
@@ -248,105 +456,47 @@ public class GitCommands {
         }
     }
 
-    private void getUntrackedFiles(String currentDirectoryPath, Set<String> untrackedFiles) throws GitException {
-        repository = initRepositoryFromFiles();
-        File currentDirectory = new File(workingDirectory + "/" + currentDirectoryPath);
-        File[] files = currentDirectory.listFiles();
-        if (files == null) {
-            return;
-        }
-        for (File file : files) {
-            if (file.isDirectory() && !file.getName().equals("git")) {
-                getUntrackedFiles(currentDirectoryPath + "/" + file.getName(), untrackedFiles);
-            } else if (file.isFile()) {
-                String fileNameWIthCurrentDirectory = currentDirectoryPath + "/" + file.getName();
-                if (currentDirectoryPath.isEmpty()) {
-                    fileNameWIthCurrentDirectory = file.getName();
-                }
-                if ((repository.getHead().getTrackedFiles().get(fileNameWIthCurrentDirectory) == null &&
-                        repository.getStagingArea().getAddedFiles().get(fileNameWIthCurrentDirectory) == null) ||
-                        repository.getStagingArea().getDeletedFiles().contains(fileNameWIthCurrentDirectory)) {
-                    untrackedFiles.add(fileNameWIthCurrentDirectory);
-                }
-            }
-        }
-    }
-
-    private void createCopyOfFile(String sourceFilePath, String copyFilePath) throws GitException {
-        File sourceFile = new File(sourceFilePath);
-        File copyFile = new File(copyFilePath);
-        try (FileInputStream fileInputStream = new FileInputStream(sourceFile);
-             FileOutputStream fileOutputStream = new FileOutputStream(copyFile)) {
-            byte[] buffer = new byte[1048576];
-            int numberOfBytes = 0;
-            while ((numberOfBytes = fileInputStream.read(buffer)) > 0) {
-                fileOutputStream.write(buffer, 0, numberOfBytes);
-            }
-        } catch (IOException exception) {
-            throw new GitException(exception.getMessage());
-        }
-    }
-
     private void changeOneLocalFile(String filePath) throws GitException {
         String absolutePathOfFileToDelete = workingDirectory + "/" + filePath;
-        String absolutePathOfCopyFile = workingDirectory + GitConstants.BLOBS_DIRECTORY + "/" + repository.getHead().getTrackedFiles().get(filePath);
+        String fileHash = repository.getTrackedFiles(repository.getHead()).get(filePath);
+        if (fileHash == null) {
+            throw new GitException("File " + filePath + " is not tracked");
+        }
         try {
             Files.delete(Paths.get(absolutePathOfFileToDelete));
         } catch (IOException ignored) {
         }
-        createCopyOfFile(absolutePathOfCopyFile, absolutePathOfFileToDelete);
+        session.getBlobStore().restore(fileHash, Paths.get(absolutePathOfFileToDelete));
+        session.getIndex().update(filePath, fileHash);
     }
 
+    /*
+     * Brings the working tree from HEAD to the given commit touching only files that differ
+     * between them or are staged, all other files keep their content and modification time
+     */
     private void changeLocalFiles(Repository.Commit commitToCheckout) throws GitException {
-        for (String filePath : repository.getHead().getTrackedFiles().keySet()) {
-            try {
-                Files.delete(Paths.get(filePath));
-            } catch (IOException ignored) {
-            }
-        }
-        for (String filePath : repository.getStagingArea().getAddedFiles().keySet()) {
-            if (commitToCheckout.getTrackedFiles().get(filePath) == null) {
-                try {
-                    Files.delete(Paths.get(filePath));
-                } catch (IOException ignored) {
-                }
+        TreeStore treeStore = repository.getTreeStore();
+        ObjectId targetTree = repository.getTreeHash(commitToCheckout);
+        Map<String, String> changes = treeStore.diff(repository.getTreeHash(repository.getHead()), targetTree);
+        Set<String> stagedFiles = new HashSet<>(repository.getStagingArea().getAddedFiles().keySet());
+        stagedFiles.addAll(repository.getStagingArea().getDeletedFiles());
+        for (String filePath : stagedFiles) {
+            if (!changes.containsKey(filePath)) {
+                changes.put(filePath, treeStore.find(targetTree, filePath));
             }
         }
-        for (String filePath : commitToCheckout.getTrackedFiles().keySet()) {
-            String absolutePathOfOriginFile = workingDirectory + "/" + filePath;
-            String absolutePathOfCopyFile = workingDirectory + GitConstants.BLOBS_DIRECTORY + "/" + commitToCheckout.getTrackedFiles().get(filePath);
-            createCopyOfFile(absolutePathOfCopyFile, absolutePathOfOriginFile);
-        }
+        applyChanges(changes);
     }
 
-    private String getFileHash(String absoluteFilePath) throws GitException {
-        try {
-            byte[] fileContent = FileUtils.readFileToByteArray(new File(absoluteFilePath));
-            return Hashing.sha256()
-                    .hashBytes(fileContent)
-                    .toString();
-        } catch (IOException exception) {
-            throw new GitException("Can't get content of file " + absoluteFilePath);
-        }
-    }
-
-    private Repository initRepositoryFromFiles() throws GitException {
-        try {
-            File repoFile = new File(workingDirectory + "/" + GitConstants.REPO_FILE);
-            ObjectMapper objectMapper = new ObjectMapper();
-            return objectMapper.readValue(repoFile, Repository.class);
-        } catch (IOException exception) {
-            throw new GitException("Repository hasn't been initialized yet");
-        }
-    }
-
-    private void writeRepositoryToFiles() throws GitException {
-        File repoFile = new File(workingDirectory + "/" + GitConstants.REPO_FILE);
-        ObjectMapper objectMapper = new ObjectMapper();
-        try {
-            objectMapper.writeValue(repoFile, repository);
-        } catch (IOException e) {
-            throw new GitException("Error while writing metainfo to file");
+    private void applyChanges(Map<String, String> changes) throws GitException {
+        int workers = session.getConfig().getInt(GitConfig.CHECKOUT_WORKERS, Runtime.getRuntime().availableProcessors());
+        new WorktreeWriter(workingDirectory, session.getBlobStore(), workers, session.getStatistics()).apply(changes);
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            if (change.getValue() == null) {
+                session.getIndex().remove(change.getKey());
+            } else {
+                session.getIndex().update(change.getKey(), change.getValue());
+            }
         }
     }
 }
@@ -0,0 +1,76 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+/*
+ * Per-repository settings stored in git/config as key=value lines
+ */
+public class GitConfig {
+    public static final @NotNull String COMPRESSION = "core.compression";
+    public static final @NotNull String PACK_DEPTH = "pack.depth";
+    public static final @NotNull String CHECKOUT_WORKERS = "checkout.workers";
+    public static final @NotNull String ADD_WORKERS = "add.workers";
+    public static final @NotNull String STATUS_IGNORE = "status.ignore";
+    public static final @NotNull String BLOB_LAYOUT = "core.blobLayout";
+    public static final @NotNull String SHARDED_LAYOUT = "sharded";
+
+    private final Path configFile;
+    private final Properties properties;
+
+    private GitConfig(Path file, Properties configProperties) {
+        configFile = file;
+        properties = configProperties;
+    }
+
+    public static GitConfig load(@NotNull String workingDirectory) throws GitException {
+        Path configFile = Paths.get(workingDirectory, GitConstants.CONFIG_FILE);
+        Properties properties = new Properties();
+        if (Files.exists(configFile)) {
+            try (Reader reader = Files.newBufferedReader(configFile, StandardCharsets.UTF_8)) {
+                properties.load(reader);
+            } catch (IOException exception) {
+                throw new GitException("Can't read repository config");
+            }
+        }
+        return new GitConfig(configFile, properties);
+    }
+
+    public String get(@NotNull String key, String defaultValue) {
+        return properties.getProperty(key, defaultValue);
+    }
+
+    public int getInt(@NotNull String key, int defaultValue) throws GitException {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException exception) {
+            throw new GitException("Config value " + key + " should be a number");
+        }
+    }
+
+    public void set(@NotNull String key, @NotNull String value) {
+        properties.setProperty(key, value);
+    }
+
+    public void save() throws GitException {
+        try {
+            StringWriter writer = new StringWriter();
+            properties.store(writer, null);
+            GitFiles.writeAtomically(configFile, writer.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException exception) {
+            throw new GitException("Can't write repository config");
+        }
+    }
+}
@@ -18,9 +18,34 @@ public final class GitConstants {
     public static final @NotNull String BRANCH_REMOVE = "branch-remove";
     public static final @NotNull String SHOW_BRANCHES = "show-branches";
     public static final @NotNull String MERGE = "merge";
+    public static final @NotNull String GC = "gc";
+    public static final @NotNull String BATCH = "batch";
+    public static final @NotNull String DAEMON = "daemon";
+    public static final @NotNull String DAEMON_STOP = "daemon-stop";
     public static final @NotNull String BLOBS_DIRECTORY = "/git/blobs";
     public static final @NotNull String COMMITS_DIRECTORY = "/git/commits";
+    public static final @NotNull String TREES_DIRECTORY = "/git/trees";
+    public static final @NotNull String PACKS_DIRECTORY = "/git/packs";
+    public static final @NotNull String PACK_EXTENSION = ".pack";
+    public static final @NotNull String PACK_INDEX_EXTENSION = ".idx";
     public static final @NotNull String REPO_FILE = "git/repository";
+    public static final @NotNull String HEAD_FILE = "git/HEAD";
+    public static final @NotNull String REFS_DIRECTORY = "git/refs/heads";
+    public static final @NotNull String PACKED_REFS_FILE = "git/packed-refs";
+    public static final @NotNull String STAGING_FILE = "git/staging";
+    public static final @NotNull String MERGE_HEAD_FILE = "git/MERGE_HEAD";
+    public static final @NotNull String COMMIT_GRAPH_FILE = "git/commit-graph";
+    public static final @NotNull String COMMIT_GRAPH_INDEX_FILE = "git/commit-graph.idx";
+    public static final @NotNull String INDEX_FILE = "git/index";
+    public static final @NotNull String CONFIG_FILE = "git/config";
+    public static final @NotNull String JOURNAL_FILE = "git/journal";
+    public static final @NotNull String LOCK_FILE = "git/lock";
+    public static final @NotNull String DAEMON_SOCKET_FILE = "git/daemon.sock";
+    public static final @NotNull String DEFAULT_COMPRESSION = "deflate";
+    public static final int DEFAULT_PACK_DEPTH = 50;
+    public static final long DEFAULT_LOCK_TIMEOUT_MILLIS = 10000;
 
     public static final @NotNull String MASTER = "master";
+    public static final @NotNull String STATISTICS_PROPERTY = "git.statistics";
+    public static final @NotNull String LOCK_TIMEOUT_PROPERTY = "git.lockTimeout";
 }
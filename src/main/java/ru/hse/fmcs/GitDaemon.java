@@ -0,0 +1,182 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/*
+ * Serves commands for one repository over a Unix domain socket in git/daemon.sock, so the JVM
+ * starts once and the session with loaded metadata, caches and open packs stays warm between
+ * commands. Commands run one at a time. Before every command the metadata files under git/ are
+ * compared with how the daemon left them; if another process has changed them, the warm state
+ * is dropped and loaded again. A command that fails drops it as well, it may be half applied
+ */
+public class GitDaemon {
+    // metadata that other processes change, blobs, commits and trees are immutable
+    private static final List<String> WATCHED_FILES = List.of(GitConstants.HEAD_FILE, GitConstants.PACKED_REFS_FILE,
+            GitConstants.STAGING_FILE, GitConstants.MERGE_HEAD_FILE, GitConstants.INDEX_FILE, GitConstants.CONFIG_FILE,
+            GitConstants.COMMIT_GRAPH_FILE, GitConstants.COMMIT_GRAPH_INDEX_FILE, GitConstants.REPO_FILE,
+            GitConstants.JOURNAL_FILE);
+    // gc of another process adds packs and removes loose blobs the caches may know of
+    private static final List<String> WATCHED_DIRECTORIES = List.of(GitConstants.BLOBS_DIRECTORY, GitConstants.PACKS_DIRECTORY);
+    // a batch comes as one string per line of its script, far fewer than this
+    private static final int MAX_REQUEST_STRINGS = 1 << 20;
+
+    private final String workingDirectory;
+    private final Path socketFile;
+    private final GitCliImpl gitCli;
+    private RepositorySession session;
+    private String fingerprint;
+
+    public GitDaemon(@NotNull String workingDir) {
+        workingDirectory = workingDir;
+        socketFile = Paths.get(workingDir, GitConstants.DAEMON_SOCKET_FILE);
+        gitCli = new GitCliImpl(workingDir);
+    }
+
+    /*
+     * Serves commands until daemon-stop is received
+     */
+    public void run() throws GitException {
+        if (DaemonClient.isRunning(workingDirectory)) {
+            throw new GitException("Daemon is already running");
+        }
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            // a socket file left by a daemon that was killed
+            Files.deleteIfExists(socketFile);
+            Files.createDirectories(socketFile.getParent());
+            server.bind(UnixDomainSocketAddress.of(socketFile));
+            try {
+                boolean running = true;
+                while (running) {
+                    try (SocketChannel client = server.accept()) {
+                        running = serve(client);
+                    } catch (IOException ignored) {
+                        // the client went away, the next one is served as usual
+                    }
+                }
+            } finally {
+                Files.deleteIfExists(socketFile);
+                closeSession();
+            }
+        } catch (IOException exception) {
+            throw new GitException("Can't listen on " + socketFile);
+        }
+    }
+
+    private boolean serve(SocketChannel client) throws IOException {
+        DataInputStream input = new DataInputStream(Channels.newInputStream(client));
+        PrintStream output = new PrintStream(Channels.newOutputStream(client), false, StandardCharsets.UTF_8);
+        int size = input.readInt();
+        // a request of another client or of a broken one is answered, the daemon keeps serving
+        if (size <= 0 || size > MAX_REQUEST_STRINGS) {
+            output.println("Invalid daemon request");
+            output.flush();
+            return true;
+        }
+        List<String> request = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            request.add(input.readUTF());
+        }
+        String command = request.get(0);
+        if (command.equals(GitConstants.DAEMON_STOP)) {
+            output.println("Daemon stopped");
+            output.flush();
+            return false;
+        }
+        gitCli.setOutputStream(output);
+        List<String> arguments = request.subList(1, request.size());
+        CommandStatistics lockStatistics = new CommandStatistics();
+        try {
+            RepositoryLock lock = RepositoryLock.acquire(workingDirectory,
+                    GitCliImpl.isShared(workingDirectory, GitCliImpl.isReadOnly(command, arguments)), lockStatistics);
+            try {
+                // checked under the lock, so no other process changes the files until the command is done
+                RepositorySession current = getSession();
+                current.getStatistics().clear();
+                current.getStatistics().addAll(lockStatistics);
+                gitCli.runCommand(current, command, arguments);
+                fingerprint = fingerprint();
+            } finally {
+                lock.close();
+            }
+        } catch (GitException exception) {
+            output.println(exception.getMessage());
+            closeSession();
+        } catch (RuntimeException exception) {
+            output.println("Daemon failed: " + exception);
+            closeSession();
+        }
+        output.flush();
+        return true;
+    }
+
+    private RepositorySession getSession() throws GitException {
+        if (session != null && !fingerprint().equals(fingerprint)) {
+            closeSession();
+        }
+        if (session == null) {
+            session = new RepositorySession(workingDirectory);
+        }
+        return session;
+    }
+
+    private void closeSession() {
+        if (session != null) {
+            session.close();
+            session = null;
+        }
+    }
+
+    /*
+     * Identity, size and modification time of every watched file and of every ref. Files are
+     * replaced by renames, so a rewrite changes the identity even within the timestamp resolution
+     */
+    private String fingerprint() throws GitException {
+        StringBuilder fingerprint = new StringBuilder();
+        try {
+            for (String file : WATCHED_FILES) {
+                appendAttributes(fingerprint, Paths.get(workingDirectory, file));
+            }
+            for (String directory : WATCHED_DIRECTORIES) {
+                appendAttributes(fingerprint, Paths.get(workingDirectory + directory));
+            }
+            Path refsDirectory = Paths.get(workingDirectory, GitConstants.REFS_DIRECTORY);
+            if (Files.isDirectory(refsDirectory)) {
+                try (Stream<Path> refs = Files.walk(refsDirectory)) {
+                    for (Path ref : (Iterable<Path>) refs.sorted()::iterator) {
+                        appendAttributes(fingerprint, ref);
+                    }
+                }
+            }
+        } catch (IOException exception) {
+            throw new GitException("Can't read repository metainfo");
+        }
+        return fingerprint.toString();
+    }
+
+    private static void appendAttributes(StringBuilder fingerprint, Path file) throws IOException {
+        fingerprint.append(file).append(':');
+        if (Files.exists(file)) {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            fingerprint.append(attributes.fileKey()).append(',').append(attributes.size()).append(',')
+                    .append(attributes.lastModifiedTime());
+        }
+        fingerprint.append('\n');
+    }
+}
@@ -0,0 +1,188 @@
+package ru.hse.fmcs;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Stat cache of the working tree: for every known file keeps size, mtime, inode and
+ * the hash computed last time, so unchanged files are not read again
+ */
+public class GitIndex {
+    public static final @NotNull String FILES_HASHED = "Files hashed";
+
+    private final String workingDirectory;
+    private final CommandStatistics statistics;
+    private final Map<String, Entry> entries;
+    private long indexModificationTime;
+    private boolean changed;
+
+    private GitIndex(String workingDir, CommandStatistics commandStatistics, Map<String, Entry> indexEntries, long modificationTime) {
+        workingDirectory = workingDir;
+        statistics = commandStatistics;
+        entries = indexEntries;
+        indexModificationTime = modificationTime;
+    }
+
+    public static GitIndex load(String workingDirectory, ObjectMapper objectMapper, CommandStatistics statistics) throws GitException {
+        Path indexFile = Paths.get(workingDirectory, GitConstants.INDEX_FILE);
+        if (!Files.exists(indexFile)) {
+            return new GitIndex(workingDirectory, statistics, new HashMap<>(), Long.MIN_VALUE);
+        }
+        try {
+            long modificationTime = Files.getLastModifiedTime(indexFile).to(TimeUnit.NANOSECONDS);
+            Map<String, Entry> entries = objectMapper.readValue(indexFile.toFile(), new TypeReference<HashMap<String, Entry>>() {});
+            return new GitIndex(workingDirectory, statistics, entries, modificationTime);
+        } catch (IOException exception) {
+            // the index is only a cache, so a broken one is rebuilt from scratch
+            return new GitIndex(workingDirectory, statistics, new HashMap<>(), Long.MIN_VALUE);
+        }
+    }
+
+    public void save(ObjectMapper objectMapper) throws GitException {
+        if (!changed) {
+            return;
+        }
+        try {
+            // commands that only read save it too, under the shared lock, so readers never see a half-written index
+            Path indexFile = Paths.get(workingDirectory, GitConstants.INDEX_FILE);
+            GitFiles.writeAtomically(indexFile, objectMapper.writeValueAsBytes(entries));
+            // the daemon keeps the index, entries older than this save can be trusted from now on
+            indexModificationTime = Files.getLastModifiedTime(indexFile).to(TimeUnit.NANOSECONDS);
+            changed = false;
+        } catch (IOException exception) {
+            throw new GitException("Error while writing index to file");
+        }
+    }
+
+    /*
+     * Hash of the working tree file, the file is read only if its stat data changed
+     */
+    public String getFileHash(@NotNull String filePath, @NotNull FileHashFunction hashFunction) throws GitException {
+        Path path = Paths.get(workingDirectory, filePath);
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException exception) {
+            remove(filePath);
+            throw new GitException("Can't get content of file " + path);
+        } catch (IOException exception) {
+            throw new GitException("Can't get content of file " + path);
+        }
+        Entry entry = entries.get(filePath);
+        if (entry != null && entry.matches(attributes) && !isRacilyClean(entry)) {
+            return entry.getHash();
+        }
+        String fileHash = hashFunction.apply(path);
+        statistics.increment(FILES_HASHED);
+        entries.put(filePath, new Entry(attributes, fileHash));
+        changed = true;
+        return fileHash;
+    }
+
+    /*
+     * Entry of the file if its stat data hasn't changed since it was hashed, null otherwise
+     */
+    public Entry getCleanEntry(@NotNull String filePath) {
+        Entry entry = entries.get(filePath);
+        if (entry == null || isRacilyClean(entry)) {
+            return null;
+        }
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(Paths.get(workingDirectory, filePath), BasicFileAttributes.class);
+            return entry.matches(attributes) ? entry : null;
+        } catch (IOException exception) {
+            return null;
+        }
+    }
+
+    /*
+     * Remembers the hash of a file that has just been written from a known blob
+     */
+    public void update(@NotNull String filePath, @NotNull String fileHash) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(Paths.get(workingDirectory, filePath), BasicFileAttributes.class);
+            entries.put(filePath, new Entry(attributes, fileHash));
+        } catch (IOException exception) {
+            entries.remove(filePath);
+        }
+        changed = true;
+    }
+
+    /*
+     * Remembers the hash of a file hashed elsewhere, attributes must be read before hashing
+     */
+    public void update(@NotNull String filePath, @NotNull BasicFileAttributes attributes, @NotNull String fileHash) {
+        entries.put(filePath, new Entry(attributes, fileHash));
+        changed = true;
+    }
+
+    public void remove(@NotNull String filePath) {
+        if (entries.remove(filePath) != null) {
+            changed = true;
+        }
+    }
+
+    // a file modified in the same timestamp tick as the index was written can't be trusted
+    private boolean isRacilyClean(Entry entry) {
+        return entry.getModificationTime() >= indexModificationTime;
+    }
+
+    public interface FileHashFunction {
+        String apply(Path file) throws GitException;
+    }
+
+    public static class Entry {
+        private final long size;
+        private final long modificationTime;
+        private final String fileKey;
+        private final String hash;
+
+        public Entry() {
+            size = 0;
+            modificationTime = 0;
+            fileKey = null;
+            hash = "";
+        }
+
+        public Entry(BasicFileAttributes attributes, String fileHash) {
+            size = attributes.size();
+            modificationTime = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+            fileKey = attributes.fileKey() == null ? null : attributes.fileKey().toString();
+            hash = fileHash;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getModificationTime() {
+            return modificationTime;
+        }
+
+        public String getFileKey() {
+            return fileKey;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public boolean matches(BasicFileAttributes attributes) {
+            String currentFileKey = attributes.fileKey() == null ? null : attributes.fileKey().toString();
+            return size == attributes.size()
+                    && modificationTime == attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS)
+                    && (fileKey == null || fileKey.equals(currentFileKey));
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/*
+ * Ignore rules in .gitignore syntax: '#' comments, '!' negation, a trailing '/' for directories
+ * only, '*', '?', '[...]' inside a segment and '**' for any number of segments. A pattern without
+ * a slash in the middle matches at any depth, otherwise it is anchored to the root. The last
+ * matching rule wins.
+ * Rules are compiled into a trie over path segments: literal segments are looked up in a map,
+ * only wildcard segments are matched with regular expressions, and a path is matched by walking
+ * the trie with all active states at once
+ */
+public class IgnoreRules implements WorktreeScanner.IgnoreFilter {
+    public static final @NotNull String IGNORE_FILE = ".gitignore";
+
+    private final Node root = new Node(false);
+    private final List<Rule> rules = new ArrayList<>();
+
+    /*
+     * Rules of the status.ignore config value (comma separated) followed by the rules
+     * of .gitignore in the root of the working tree
+     */
+    public static IgnoreRules load(@NotNull String workingDirectory, @NotNull GitConfig config) throws GitException {
+        IgnoreRules ignoreRules = new IgnoreRules();
+        for (String pattern : config.get(GitConfig.STATUS_IGNORE, "").split(",")) {
+            ignoreRules.add(pattern);
+        }
+        Path ignoreFile = Paths.get(workingDirectory, IGNORE_FILE);
+        if (Files.isRegularFile(ignoreFile)) {
+            try {
+                for (String line : Files.readAllLines(ignoreFile, StandardCharsets.UTF_8)) {
+                    ignoreRules.add(line);
+                }
+            } catch (IOException exception) {
+                throw new GitException("Can't read " + IGNORE_FILE);
+            }
+        }
+        return ignoreRules;
+    }
+
+    public void add(@NotNull String line) {
+        String pattern = trimTrailingSpaces(line);
+        if (pattern.isEmpty() || pattern.startsWith("#")) {
+            return;
+        }
+        boolean negated = pattern.startsWith("!");
+        if (negated) {
+            pattern = pattern.substring(1);
+        } else if (pattern.startsWith("\\!") || pattern.startsWith("\\#")) {
+            pattern = pattern.substring(1);
+        }
+        boolean directoryOnly = pattern.endsWith("/");
+        if (directoryOnly) {
+            pattern = pattern.substring(0, pattern.length() - 1);
+        }
+        boolean anchored = pattern.indexOf('/') >= 0;
+        if (pattern.startsWith("/")) {
+            pattern = pattern.substring(1);
+        }
+        if (pattern.isEmpty()) {
+            return;
+        }
+        Node node = anchored ? root : root.child("**");
+        String[] segments = pattern.split("/");
+        for (int i = 0; i < segments.length; i++) {
+            if (segments[i].isEmpty()) {
+                continue;
+            }
+            // a trailing "/**" matches everything inside the directory, but not the directory itself
+            if (i > 0 && i == segments.length - 1 && segments[i].equals("**")) {
+                node = node.child("*");
+            }
+            node = node.child(segments[i]);
+        }
+        node.rules.add(rules.size());
+        rules.add(new Rule(negated, directoryOnly));
+    }
+
+    @Override
+    public boolean isIgnored(@NotNull String path, boolean isDirectory) {
+        if (rules.isEmpty()) {
+            return false;
+        }
+        List<Node> states = new ArrayList<>();
+        addWithClosure(states, root);
+        for (String segment : path.split("/")) {
+            List<Node> nextStates = new ArrayList<>();
+            for (Node state : states) {
+                if (state.isDoubleStar) {
+                    addWithClosure(nextStates, state);
+                }
+                Node literal = state.literals.get(segment);
+                if (literal != null) {
+                    addWithClosure(nextStates, literal);
+                }
+                for (Map.Entry<Pattern, Node> glob : state.globs) {
+                    if (glob.getKey().matcher(segment).matches()) {
+                        addWithClosure(nextStates, glob.getValue());
+                    }
+                }
+            }
+            if (nextStates.isEmpty()) {
+                return false;
+            }
+            states = nextStates;
+        }
+        int lastRule = -1;
+        for (Node state : states) {
+            for (int rule : state.rules) {
+                if (rule > lastRule && (isDirectory || !rules.get(rule).directoryOnly)) {
+                    lastRule = rule;
+                }
+            }
+        }
+        return lastRule >= 0 && !rules.get(lastRule).negated;
+    }
+
+    // '**' also matches no segments at all, so its node is active together with its parent
+    private static void addWithClosure(List<Node> states, Node node) {
+        if (states.contains(node)) {
+            return;
+        }
+        states.add(node);
+        if (node.doubleStar != null) {
+            addWithClosure(states, node.doubleStar);
+        }
+    }
+
+    private static String trimTrailingSpaces(String line) {
+        int end = line.length();
+        while (end > 0 && line.charAt(end - 1) == ' ' && !(end > 1 && line.charAt(end - 2) == '\\')) {
+            end--;
+        }
+        return line.substring(0, end);
+    }
+
+    private static boolean isLiteral(String segment) {
+        return segment.chars().noneMatch(c -> c == '*' || c == '?' || c == '[' || c == '\\');
+    }
+
+    private static Pattern compileGlob(String segment) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < segment.length(); i++) {
+            char c = segment.charAt(i);
+            if (c == '*') {
+                regex.append("[^/]*");
+            } else if (c == '?') {
+                regex.append("[^/]");
+            } else if (c == '\\' && i + 1 < segment.length()) {
+                regex.append(Pattern.quote(String.valueOf(segment.charAt(++i))));
+            } else if (c == '[' && segment.indexOf(']', i + 2) > 0) {
+                int end = segment.indexOf(']', i + 2);
+                String characters = segment.substring(i + 1, end);
+                if (characters.startsWith("!")) {
+                    characters = "^" + characters.substring(1);
+                }
+                regex.append('[').append(characters.replace("\\", "\\\\").replace("[", "\\[")).append(']');
+                i = end;
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    private static class Rule {
+        private final boolean negated;
+        private final boolean directoryOnly;
+
+        private Rule(boolean isNegated, boolean isDirectoryOnly) {
+            negated = isNegated;
+            directoryOnly = isDirectoryOnly;
+        }
+    }
+
+    private static class Node {
+        private final boolean isDoubleStar;
+        private final Map<String, Node> literals = new HashMap<>();
+        private final List<Map.Entry<Pattern, Node>> globs = new ArrayList<>();
+        private final Map<String, Node> globsBySource = new HashMap<>();
+        private final List<Integer> rules = new ArrayList<>();
+        private Node doubleStar;
+
+        private Node(boolean doubleStarNode) {
+            isDoubleStar = doubleStarNode;
+        }
+
+        private Node child(String segment) {
+            if (segment.equals("**")) {
+                if (doubleStar == null) {
+                    doubleStar = new Node(true);
+                }
+                return doubleStar;
+            }
+            if (isLiteral(segment)) {
+                return literals.computeIfAbsent(segment, name -> new Node(false));
+            }
+            Node child = globsBySource.get(segment);
+            if (child == null) {
+                child = new Node(false);
+                globsBySource.put(segment, child);
+                globs.add(Map.entry(compileGlob(segment), child));
+            }
+            return child;
+        }
+    }
+}
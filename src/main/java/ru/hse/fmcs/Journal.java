@@ -0,0 +1,213 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/*
+ * Write-ahead journal of the metainfo files changed by one save. All new contents and deletions
+ * are written to git/journal first, which is forced to the disk and renamed into place, and only
+ * then applied to the files. A crash before the rename leaves the files as they were, a crash
+ * after it is repaired by replaying the journal on the next load, so HEAD, refs and staging
+ * always change together. Objects must be on the disk before anything referencing them is journaled.
+ *
+ * Layout: int magic, int version, int number of entries, then for every entry the path relative
+ * to the working directory, a byte telling whether the file is written or deleted and the new
+ * content as an int length and bytes; a CRC32 of all of that ends the file
+ */
+public class Journal {
+    public static final @NotNull String JOURNALS_REPLAYED = "Journals replayed";
+    public static final @NotNull String JOURNALS_DISCARDED = "Journals discarded";
+
+    private static final int MAGIC = 0x474a4e4c;
+    private static final int VERSION = 1;
+    private static final byte DELETE = 0;
+    private static final byte WRITE = 1;
+
+    private final Path workingDirectory;
+    private final Path journalFile;
+    private final CommandStatistics statistics;
+    // in the order they are applied, a null content marks a deleted file
+    private final Map<String, byte[]> entries = new LinkedHashMap<>();
+
+    public Journal(@NotNull Path workingDir, @NotNull CommandStatistics commandStatistics) {
+        workingDirectory = workingDir;
+        journalFile = workingDir.resolve(GitConstants.JOURNAL_FILE);
+        statistics = commandStatistics;
+    }
+
+    public void write(@NotNull Path file, byte @NotNull [] content) {
+        entries.put(relativize(file), content);
+    }
+
+    /*
+     * Directories left empty by the deletion are removed as well
+     */
+    public void delete(@NotNull Path file) {
+        entries.put(relativize(file), null);
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /*
+     * Makes all recorded changes durable and applies them
+     */
+    public void commit() throws GitException {
+        if (entries.isEmpty()) {
+            return;
+        }
+        try {
+            GitFiles.writeAtomically(journalFile, encode());
+            GitFiles.syncDirectory(journalFile.getParent());
+            apply(entries);
+            Files.delete(journalFile);
+        } catch (IOException exception) {
+            throw new GitException("Error while writing metainfo to file");
+        } finally {
+            entries.clear();
+        }
+    }
+
+    /*
+     * Finishes the save interrupted by a crash. A journal that can't be read completely was
+     * never renamed into place as a whole, it is dropped and the files stay as they are.
+     * Replaying is idempotent, so readers may do it side by side
+     */
+    public void recover() throws GitException {
+        if (!Files.exists(journalFile)) {
+            return;
+        }
+        try {
+            Map<String, byte[]> journaled = decode(Files.readAllBytes(journalFile));
+            if (journaled == null) {
+                statistics.increment(JOURNALS_DISCARDED);
+            } else {
+                apply(journaled);
+                statistics.increment(JOURNALS_REPLAYED);
+            }
+            Files.deleteIfExists(journalFile);
+        } catch (NoSuchFileException exception) {
+            // readers share the lock, another one has just recovered it
+        } catch (IOException exception) {
+            throw new GitException("Can't recover metainfo from " + GitConstants.JOURNAL_FILE);
+        }
+    }
+
+    // writing files again is harmless, so a journal is replayed as a whole even if it was partly applied
+    private void apply(Map<String, byte[]> changes) throws IOException {
+        Set<Path> directories = new HashSet<>();
+        for (Map.Entry<String, byte[]> entry : changes.entrySet()) {
+            Path file = workingDirectory.resolve(entry.getKey());
+            if (entry.getValue() == null) {
+                Files.deleteIfExists(file);
+                deleteEmptyDirectories(file.getParent());
+            } else {
+                GitFiles.writeAtomically(file, entry.getValue());
+            }
+            directories.add(file.getParent());
+        }
+        for (Path directory : directories) {
+            if (Files.isDirectory(directory)) {
+                GitFiles.syncDirectory(directory);
+            }
+        }
+    }
+
+    private void deleteEmptyDirectories(Path directory) throws IOException {
+        Path gitDirectory = journalFile.getParent();
+        for (; directory.startsWith(gitDirectory) && !directory.equals(gitDirectory); directory = directory.getParent()) {
+            if (!Files.isDirectory(directory)) {
+                continue;
+            }
+            try (Stream<Path> children = Files.list(directory)) {
+                if (children.findAny().isPresent()) {
+                    break;
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    private byte[] encode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        output.writeInt(entries.size());
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            output.writeUTF(entry.getKey());
+            if (entry.getValue() == null) {
+                output.writeByte(DELETE);
+            } else {
+                output.writeByte(WRITE);
+                output.writeInt(entry.getValue().length);
+                output.write(entry.getValue());
+            }
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(bytes.toByteArray());
+        output.writeLong(checksum.getValue());
+        return bytes.toByteArray();
+    }
+
+    // null if the journal is torn or corrupted
+    private static Map<String, byte[]> decode(byte[] content) {
+        if (content.length < Long.BYTES) {
+            return null;
+        }
+        int length = content.length - Long.BYTES;
+        CRC32 checksum = new CRC32();
+        checksum.update(content, 0, length);
+        if (ByteBuffer.wrap(content).getLong(length) != checksum.getValue()) {
+            return null;
+        }
+        try {
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(content, 0, length));
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                return null;
+            }
+            Map<String, byte[]> journaled = new LinkedHashMap<>();
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = input.readUTF();
+                // only files of the repository itself are ever journaled
+                if (!path.startsWith("git/") || path.contains("..")) {
+                    return null;
+                }
+                byte[] fileContent = null;
+                if (input.readByte() == WRITE) {
+                    int size = input.readInt();
+                    if (size < 0 || size > input.available()) {
+                        return null;
+                    }
+                    fileContent = new byte[size];
+                    input.readFully(fileContent);
+                }
+                journaled.put(path, fileContent);
+            }
+            return journaled;
+        } catch (IOException exception) {
+            return null;
+        }
+    }
+
+    private String relativize(Path file) {
+        return workingDirectory.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+    }
+}
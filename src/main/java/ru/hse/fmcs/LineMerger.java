@@ -0,0 +1,212 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Three-way merge of file contents line by line, like diff3: both versions are matched against
+ * the base with a Myers diff, lines all three agree on are stable and every region between them
+ * takes the side that changed it. Regions changed differently on both sides become conflicts
+ * marked with <<<<<<<, ======= and >>>>>>>. Binary content isn't merged, it is a conflict that
+ * keeps our version. Lines are handled as ISO-8859-1 strings, so any bytes are kept as they are
+ */
+public final class LineMerger {
+    private LineMerger() {}
+
+    public static Result merge(byte @NotNull [] base, byte @NotNull [] ours, byte @NotNull [] theirs,
+                               @NotNull String oursLabel, @NotNull String theirsLabel) {
+        if (isBinary(base) || isBinary(ours) || isBinary(theirs)) {
+            return new Result(ours, true);
+        }
+        Map<String, Integer> lineIds = new HashMap<>();
+        List<String> baseLines = splitLines(base);
+        List<String> ourLines = splitLines(ours);
+        List<String> theirLines = splitLines(theirs);
+        int[] ourMatches = match(toIds(baseLines, lineIds), toIds(ourLines, lineIds));
+        int[] theirMatches = match(toIds(baseLines, lineIds), toIds(theirLines, lineIds));
+
+        StringBuilder merged = new StringBuilder();
+        boolean conflict = false;
+        int baseLine = 0;
+        int ourLine = 0;
+        int theirLine = 0;
+        while (true) {
+            while (baseLine < baseLines.size() && ourMatches[baseLine] == ourLine && theirMatches[baseLine] == theirLine) {
+                merged.append(baseLines.get(baseLine));
+                baseLine++;
+                ourLine++;
+                theirLine++;
+            }
+            if (baseLine == baseLines.size() && ourLine == ourLines.size() && theirLine == theirLines.size()) {
+                break;
+            }
+            // the changed region ends at the next base line both sides still have
+            int baseEnd = baseLine;
+            while (baseEnd < baseLines.size() && (ourMatches[baseEnd] < 0 || theirMatches[baseEnd] < 0)) {
+                baseEnd++;
+            }
+            int ourEnd = baseEnd < baseLines.size() ? ourMatches[baseEnd] : ourLines.size();
+            int theirEnd = baseEnd < baseLines.size() ? theirMatches[baseEnd] : theirLines.size();
+            List<String> baseRegion = baseLines.subList(baseLine, baseEnd);
+            List<String> ourRegion = ourLines.subList(ourLine, ourEnd);
+            List<String> theirRegion = theirLines.subList(theirLine, theirEnd);
+            if (ourRegion.equals(baseRegion)) {
+                appendLines(merged, theirRegion, false);
+            } else if (theirRegion.equals(baseRegion) || theirRegion.equals(ourRegion)) {
+                appendLines(merged, ourRegion, false);
+            } else {
+                conflict = true;
+                merged.append("<<<<<<< ").append(oursLabel).append('\n');
+                appendLines(merged, ourRegion, true);
+                merged.append("=======\n");
+                appendLines(merged, theirRegion, true);
+                merged.append(">>>>>>> ").append(theirsLabel).append('\n');
+            }
+            baseLine = baseEnd;
+            ourLine = ourEnd;
+            theirLine = theirEnd;
+        }
+        return new Result(merged.toString().getBytes(StandardCharsets.ISO_8859_1), conflict);
+    }
+
+    /*
+     * For every line of the first sequence the index of the matching line of the second one
+     * in their longest common subsequence, -1 for lines that aren't matched
+     */
+    static int[] match(int[] first, int[] second) {
+        int[] matches = new int[first.length];
+        Arrays.fill(matches, -1);
+        int prefix = 0;
+        while (prefix < first.length && prefix < second.length && first[prefix] == second[prefix]) {
+            matches[prefix] = prefix;
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < first.length - prefix && suffix < second.length - prefix
+                && first[first.length - 1 - suffix] == second[second.length - 1 - suffix]) {
+            matches[first.length - 1 - suffix] = second.length - 1 - suffix;
+            suffix++;
+        }
+        matchMiddle(Arrays.copyOfRange(first, prefix, first.length - suffix),
+                Arrays.copyOfRange(second, prefix, second.length - suffix), matches, prefix);
+        return matches;
+    }
+
+    // Myers' O(ND) diff, the furthest reaching path of every step is kept to walk it back
+    private static void matchMiddle(int[] first, int[] second, int[] matches, int offset) {
+        int n = first.length;
+        int m = second.length;
+        int max = n + m;
+        if (n == 0 || m == 0) {
+            return;
+        }
+        int[] furthest = new int[2 * max + 2];
+        List<int[]> trace = new ArrayList<>();
+        int steps = -1;
+        for (int d = 0; d <= max && steps < 0; d++) {
+            trace.add(Arrays.copyOfRange(furthest, max - d, max + d + 2));
+            for (int k = -d; k <= d; k += 2) {
+                int x = k == -d || (k != d && furthest[max + k - 1] < furthest[max + k + 1])
+                        ? furthest[max + k + 1]
+                        : furthest[max + k - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && first[x] == second[y]) {
+                    x++;
+                    y++;
+                }
+                furthest[max + k] = x;
+                if (x >= n && y >= m) {
+                    steps = d;
+                    break;
+                }
+            }
+        }
+        int x = n;
+        int y = m;
+        for (int d = steps; d > 0; d--) {
+            int[] previous = trace.get(d);
+            int k = x - y;
+            boolean down = k == -d || (k != d && previous[k - 1 + d] < previous[k + 1 + d]);
+            int previousK = down ? k + 1 : k - 1;
+            int previousX = previous[previousK + d];
+            int previousY = previousX - previousK;
+            while (x > previousX && y > previousY) {
+                x--;
+                y--;
+                matches[offset + x] = offset + y;
+            }
+            x = previousX;
+            y = previousY;
+        }
+        while (x > 0 && y > 0) {
+            x--;
+            y--;
+            matches[offset + x] = offset + y;
+        }
+    }
+
+    private static int[] toIds(List<String> lines, Map<String, Integer> lineIds) {
+        int[] ids = new int[lines.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = lineIds.computeIfAbsent(lines.get(i), line -> lineIds.size());
+        }
+        return ids;
+    }
+
+    // every line keeps its '\n', the last one may have none
+    private static List<String> splitLines(byte[] content) {
+        String text = new String(content, StandardCharsets.ISO_8859_1);
+        List<String> lines = new ArrayList<>();
+        int start = 0;
+        while (start < text.length()) {
+            int end = text.indexOf('\n', start);
+            end = end < 0 ? text.length() : end + 1;
+            lines.add(text.substring(start, end));
+            start = end;
+        }
+        return lines;
+    }
+
+    // inside a conflict every line has to end with '\n', otherwise the marker would join it
+    private static void appendLines(StringBuilder merged, List<String> lines, boolean terminate) {
+        for (String line : lines) {
+            merged.append(line);
+            if (terminate && !line.endsWith("\n")) {
+                merged.append('\n');
+            }
+        }
+    }
+
+    private static boolean isBinary(byte[] content) {
+        for (byte b : content) {
+            if (b == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static class Result {
+        private final byte[] content;
+        private final boolean conflict;
+
+        private Result(byte[] mergedContent, boolean hasConflict) {
+            content = mergedContent;
+            conflict = hasConflict;
+        }
+
+        public byte[] getContent() {
+            return content;
+        }
+
+        public boolean hasConflict() {
+            return conflict;
+        }
+    }
+}
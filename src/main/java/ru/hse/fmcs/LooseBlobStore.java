@@ -0,0 +1,317 @@
+package ru.hse.fmcs;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.CountingOutputStream;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/*
+ * Stores every blob as a separate file in the blobs directory, sharded by the first two hex
+ * digits of the hash (ab/cdef...). Blobs of the old flat layout are still found until
+ * migrateToShardedLayout() moves them. Each file starts with a header naming the codec its
+ * content is compressed with, blobs written before codecs existed have no header and are read as is
+ */
+public class LooseBlobStore implements BlobStore {
+    private static final byte[] MAGIC = {0, 'G', 'B', 'L', 'O', 'B', 1};
+    private static final int HEADER_SIZE = MAGIC.length + 1;
+    private static final int SHARD_PREFIX_LENGTH = 2;
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    private final Path blobsDirectory;
+    private final BlobCodec codec;
+    private final CommandStatistics statistics;
+    private final Set<String> knownBlobs = ConcurrentHashMap.newKeySet();
+    private final Set<String> blobsBeingWritten = ConcurrentHashMap.newKeySet();
+
+    public LooseBlobStore(@NotNull Path blobsDir, @NotNull BlobCodec blobCodec, @NotNull CommandStatistics commandStatistics) {
+        blobsDirectory = blobsDir;
+        codec = blobCodec;
+        statistics = commandStatistics;
+    }
+
+    public Path getBlobPath(@NotNull String blobHash) {
+        return blobsDirectory.resolve(blobHash.substring(0, SHARD_PREFIX_LENGTH)).resolve(blobHash.substring(SHARD_PREFIX_LENGTH));
+    }
+
+    private Path getFlatBlobPath(String blobHash) {
+        return blobsDirectory.resolve(blobHash);
+    }
+
+    // path of the stored blob in either layout or null if the blob isn't stored loose
+    private Path findBlob(String blobHash) {
+        Path blob = getBlobPath(blobHash);
+        if (Files.exists(blob)) {
+            return blob;
+        }
+        blob = getFlatBlobPath(blobHash);
+        return Files.exists(blob) ? blob : null;
+    }
+
+    public boolean contains(@NotNull String blobHash) {
+        if (knownBlobs.contains(blobHash)) {
+            return true;
+        }
+        if (findBlob(blobHash) != null) {
+            knownBlobs.add(blobHash);
+            return true;
+        }
+        return false;
+    }
+
+    public boolean isLoose(@NotNull String blobHash) {
+        return findBlob(blobHash) != null;
+    }
+
+    public List<String> listLooseBlobs() throws GitException {
+        List<String> blobs = new ArrayList<>();
+        try (Stream<Path> files = Files.list(blobsDirectory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (isBlobName(name)) {
+                    blobs.add(name);
+                } else if (isShardName(name) && Files.isDirectory(file)) {
+                    try (Stream<Path> shard = Files.list(file)) {
+                        shard.map(blob -> name + blob.getFileName().toString())
+                                .filter(LooseBlobStore::isBlobName)
+                                .forEach(blobs::add);
+                    }
+                }
+            }
+        } catch (IOException exception) {
+            throw new GitException("Can't list blobs");
+        }
+        return blobs;
+    }
+
+    public void deleteLooseBlob(@NotNull String blobHash) throws GitException {
+        knownBlobs.remove(blobHash);
+        try {
+            Files.deleteIfExists(getBlobPath(blobHash));
+            Files.deleteIfExists(getFlatBlobPath(blobHash));
+        } catch (IOException exception) {
+            throw new GitException("Can't delete blob " + blobHash);
+        }
+    }
+
+    /*
+     * Moves blobs of the flat layout into shards. Every blob is moved atomically, so an
+     * interrupted migration can simply be started again
+     */
+    public int migrateToShardedLayout() throws GitException {
+        List<Path> flatBlobs;
+        try (Stream<Path> files = Files.list(blobsDirectory)) {
+            flatBlobs = files.filter(file -> isBlobName(file.getFileName().toString())).collect(Collectors.toList());
+        } catch (IOException exception) {
+            throw new GitException("Can't list blobs");
+        }
+        for (Path flatBlob : flatBlobs) {
+            Path blob = getBlobPath(flatBlob.getFileName().toString());
+            try {
+                if (Files.exists(blob)) {
+                    Files.delete(flatBlob);
+                } else {
+                    Files.createDirectories(blob.getParent());
+                    Files.move(flatBlob, blob, StandardCopyOption.ATOMIC_MOVE);
+                }
+            } catch (IOException exception) {
+                throw new GitException("Can't move blob " + flatBlob + " to " + blob);
+            }
+        }
+        return flatBlobs.size();
+    }
+
+    public static boolean isBlobName(@NotNull String name) {
+        return name.length() == 64 && isHex(name);
+    }
+
+    private static boolean isShardName(String name) {
+        return name.length() == SHARD_PREFIX_LENGTH && isHex(name);
+    }
+
+    private static boolean isHex(String name) {
+        return name.chars().allMatch(c -> (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'));
+    }
+
+    public @NotNull String hash(@NotNull Path file) throws GitException {
+        Hasher hasher = Hashing.sha256().newHasher();
+        ByteBuffer buffer = BUFFER.get();
+        long size = 0;
+        try (FileChannel input = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer.clear();
+            while (input.read(buffer) >= 0) {
+                size += buffer.position();
+                hasher.putBytes(buffer.flip());
+                buffer.clear();
+            }
+        } catch (IOException exception) {
+            throw new GitException("Can't get content of file " + file);
+        }
+        statistics.add(BYTES_HASHED, size);
+        return hasher.hash().toString();
+    }
+
+    /*
+     * Compresses the file to a temporary blob while hashing it, then renames the blob to its hash.
+     * If a blob with the same content is already stored, the temporary copy is dropped
+     */
+    public @NotNull String write(@NotNull Path file) throws GitException {
+        try (FileChannel input = FileChannel.open(file, StandardOpenOption.READ)) {
+            return write(input, "file " + file);
+        } catch (IOException exception) {
+            throw new GitException("Can't write blob of file " + file);
+        }
+    }
+
+    public @NotNull String write(byte @NotNull [] content) throws GitException {
+        return write(Channels.newChannel(new ByteArrayInputStream(content)), "merged content");
+    }
+
+    private String write(ReadableByteChannel input, String source) throws GitException {
+        Hasher hasher = Hashing.sha256().newHasher();
+        ByteBuffer buffer = BUFFER.get();
+        Path temporaryBlob = null;
+        long size = 0;
+        long storedSize;
+        try {
+            temporaryBlob = Files.createTempFile(blobsDirectory, "blob", ".tmp");
+            CountingOutputStream storedBytes = new CountingOutputStream(Files.newOutputStream(temporaryBlob));
+            try (WritableByteChannel output = Channels.newChannel(codec.compress(writeHeader(storedBytes)))) {
+                buffer.clear();
+                while (input.read(buffer) >= 0) {
+                    size += buffer.position();
+                    buffer.flip();
+                    hasher.putBytes(buffer.duplicate());
+                    while (buffer.hasRemaining()) {
+                        output.write(buffer);
+                    }
+                    buffer.clear();
+                }
+            } finally {
+                storedBytes.close();
+            }
+            storedSize = storedBytes.getCount();
+            String blobHash = hasher.hash().toString();
+            statistics.add(BYTES_HASHED, size);
+            // another thread storing the same content at the same time counts as a duplicate too
+            if (contains(blobHash) || !blobsBeingWritten.add(blobHash)) {
+                Files.delete(temporaryBlob);
+                statistics.add(BYTES_DEDUPLICATED, size);
+                return blobHash;
+            }
+            try {
+                Path blob = getBlobPath(blobHash);
+                Files.createDirectories(blob.getParent());
+                // a commit may reference the blob as soon as the refs are journaled
+                GitFiles.sync(temporaryBlob);
+                Files.move(temporaryBlob, blob, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                knownBlobs.add(blobHash);
+            } finally {
+                blobsBeingWritten.remove(blobHash);
+            }
+            statistics.add(BYTES_WRITTEN, size);
+            statistics.add(BYTES_STORED, storedSize);
+            return blobHash;
+        } catch (IOException exception) {
+            deleteQuietly(temporaryBlob);
+            throw new GitException("Can't write blob of " + source);
+        }
+    }
+
+    public @NotNull InputStream open(@NotNull String blobHash) throws GitException {
+        try {
+            Path blob = findBlob(blobHash);
+            if (blob == null) {
+                throw new GitException("There is no blob " + blobHash);
+            }
+            InputStream input = new BufferedInputStream(Files.newInputStream(blob));
+            input.mark(HEADER_SIZE);
+            byte[] header = input.readNBytes(HEADER_SIZE);
+            if (isHeader(header)) {
+                return BlobCodecs.forId(header[MAGIC.length]).decompress(input);
+            }
+            input.reset();
+            return input;
+        } catch (IOException exception) {
+            throw new GitException("Can't read blob " + blobHash);
+        }
+    }
+
+    public void restore(@NotNull String blobHash, @NotNull Path target) throws GitException {
+        Path blob = findBlob(blobHash);
+        if (blob == null) {
+            throw new GitException("There is no blob " + blobHash);
+        }
+        try {
+            Files.createDirectories(target.getParent());
+            try (FileChannel input = FileChannel.open(blob, StandardOpenOption.READ)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                while (header.hasRemaining() && input.read(header) >= 0) {
+                }
+                boolean hasHeader = isHeader(Arrays.copyOf(header.array(), header.position()));
+                if (!hasHeader || header.get(MAGIC.length) == BlobCodecs.NONE.getId()) {
+                    copy(input, hasHeader ? HEADER_SIZE : 0, target);
+                    return;
+                }
+            }
+            try (InputStream input = open(blobHash);
+                 OutputStream output = Files.newOutputStream(target)) {
+                input.transferTo(output);
+            }
+        } catch (IOException exception) {
+            throw new GitException("Can't restore file " + target + " from blob " + blobHash);
+        }
+    }
+
+    private static void copy(FileChannel input, long position, Path target) throws IOException {
+        try (FileChannel output = FileChannel.open(target, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = input.size();
+            while (position < size) {
+                position += input.transferTo(position, size - position, output);
+            }
+        }
+    }
+
+    private OutputStream writeHeader(OutputStream outputStream) throws IOException {
+        outputStream.write(MAGIC);
+        outputStream.write(codec.getId());
+        return outputStream;
+    }
+
+    private static boolean isHeader(byte[] header) {
+        return header.length == HEADER_SIZE && Arrays.equals(header, 0, MAGIC.length, MAGIC, 0, MAGIC.length);
+    }
+
+    private static void deleteQuietly(Path file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Binary form of commits and of the staging area, read without reflection and with a single
+ * pass over the bytes. Numbers are varints, hashes are raw bytes and strings are a varint
+ * length followed by UTF-8 (the length is shifted by one, so zero stands for null).
+ * A set of files is a table of directories, each directory is stored once and followed
+ * by the names and hashes of its files. Directories and names are sorted, so equal content
+ * always encodes to equal bytes, and only short names are compared while sorting.
+ *
+ * Every encoding starts with a magic, which can't start JSON, and a version:
+ *   commit:  "\0GCM", version, flags, id, [parent], [merged parent], [tree], date, message,
+ *            user, [files]
+ *   staging: "\0GST", version, files, where deleted files have no hash
+ *   files:   count of directories, (directory, count of files, (name, hash) * count) * count
+ * A hash is a byte telling its kind: the raw bytes of a valid object id follow, or a string
+ * for other hashes, or nothing for a deleted file.
+ * The files of a commit are the last part of it and they are decoded only when asked for,
+ * so reading the history for log keeps just the bytes of old flat file maps
+ */
+public final class MetadataCodec {
+    private static final byte[] COMMIT_MAGIC = {0, 'G', 'C', 'M'};
+    private static final byte[] STAGING_MAGIC = {0, 'G', 'S', 'T'};
+    private static final int VERSION = 1;
+
+    private static final int HAS_PARENT = 1;
+    private static final int HAS_MERGED_PARENT = 1 << 1;
+    private static final int HAS_TREE = 1 << 2;
+    private static final int HAS_TRACKED_FILES = 1 << 3;
+
+    private static final int STRING_HASH = 0;
+    private static final int RAW_HASH = 1;
+    private static final int DELETED = 2;
+    // name and raw hash of a file, enough to encode most staging areas without growing the buffer
+    private static final int ESTIMATED_FILE_SIZE = 48;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private MetadataCodec() {}
+
+    public static boolean isCommit(byte @NotNull [] content) {
+        return startsWith(content, COMMIT_MAGIC);
+    }
+
+    public static boolean isStagingArea(byte @NotNull [] content) {
+        return startsWith(content, STAGING_MAGIC);
+    }
+
+    public static byte[] encodeCommit(@NotNull Repository.Commit commit) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        output.writeBytes(COMMIT_MAGIC);
+        Varints.write(output, VERSION);
+        int flags = (commit.getPreviousCommit() == null ? 0 : HAS_PARENT)
+                | (commit.getMergedCommit() == null ? 0 : HAS_MERGED_PARENT)
+                | (commit.getTree() == null ? 0 : HAS_TREE)
+                | (commit.getTrackedFiles() == null ? 0 : HAS_TRACKED_FILES);
+        Varints.write(output, flags);
+        output.writeBytes(commit.getCommitHash().toBytes());
+        if (commit.getPreviousCommit() != null) {
+            output.writeBytes(commit.getPreviousCommit().toBytes());
+        }
+        if (commit.getMergedCommit() != null) {
+            output.writeBytes(commit.getMergedCommit().toBytes());
+        }
+        if (commit.getTree() != null) {
+            output.writeBytes(commit.getTree().toBytes());
+        }
+        writeString(output, commit.getDate());
+        writeString(output, commit.getMessage());
+        writeString(output, commit.getUser());
+        if (commit.getTrackedFiles() != null) {
+            writeFiles(output, commit.getTrackedFiles(), Collections.emptySet());
+        }
+        return output.toByteArray();
+    }
+
+    public static Repository.Commit decodeCommit(byte @NotNull [] content) throws GitException {
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        try {
+            checkHeader(buffer, COMMIT_MAGIC);
+            int flags = (int) Varints.read(buffer);
+            ObjectId commitHash = readObjectId(buffer);
+            ObjectId previousCommit = (flags & HAS_PARENT) == 0 ? null : readObjectId(buffer);
+            ObjectId mergedCommit = (flags & HAS_MERGED_PARENT) == 0 ? null : readObjectId(buffer);
+            ObjectId tree = (flags & HAS_TREE) == 0 ? null : readObjectId(buffer);
+            String date = readString(buffer);
+            String message = readString(buffer);
+            String user = readString(buffer);
+            Map<String, String> trackedFiles = (flags & HAS_TRACKED_FILES) == 0 ? null : new LazyFiles(buffer.slice());
+            return new Repository.Commit(commitHash, previousCommit, mergedCommit, tree, trackedFiles, date, message, user);
+        } catch (BufferUnderflowException | IllegalArgumentException exception) {
+            throw new GitException("Corrupted commit");
+        }
+    }
+
+    public static byte[] encodeStagingArea(@NotNull Repository.StagingArea stagingArea) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(
+                ESTIMATED_FILE_SIZE * (stagingArea.getAddedFiles().size() + stagingArea.getDeletedFiles().size()) + 32);
+        output.writeBytes(STAGING_MAGIC);
+        Varints.write(output, VERSION);
+        writeFiles(output, stagingArea.getAddedFiles(), stagingArea.getDeletedFiles());
+        return output.toByteArray();
+    }
+
+    public static Repository.StagingArea decodeStagingArea(byte @NotNull [] content) throws GitException {
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        try {
+            checkHeader(buffer, STAGING_MAGIC);
+            Repository.StagingArea stagingArea = new Repository.StagingArea();
+            for (Map.Entry<String, String> file : readFiles(buffer).entrySet()) {
+                if (file.getValue() == null) {
+                    stagingArea.getDeletedFiles().add(file.getKey());
+                } else {
+                    stagingArea.getAddedFiles().put(file.getKey(), file.getValue());
+                }
+            }
+            return stagingArea;
+        } catch (BufferUnderflowException | IllegalArgumentException exception) {
+            throw new GitException("Corrupted staging area");
+        }
+    }
+
+    private static void writeFiles(ByteArrayOutputStream output, Map<String, String> files, Collection<String> deletedFiles) {
+        // name and hash of every file by directory, deleted files have no hash
+        Map<String, List<String[]>> filesByDirectory = new HashMap<>();
+        for (Map.Entry<String, String> file : files.entrySet()) {
+            addFile(filesByDirectory, file.getKey(), file.getValue());
+        }
+        for (String deletedFile : deletedFiles) {
+            addFile(filesByDirectory, deletedFile, null);
+        }
+        List<String> directories = new ArrayList<>(filesByDirectory.keySet());
+        Collections.sort(directories);
+        Varints.write(output, directories.size());
+        for (String directory : directories) {
+            writeString(output, directory);
+            List<String[]> directoryFiles = filesByDirectory.get(directory);
+            directoryFiles.sort(Comparator.comparing(file -> file[0]));
+            Varints.write(output, directoryFiles.size());
+            for (String[] file : directoryFiles) {
+                writeString(output, file[0]);
+                writeHash(output, file[1]);
+            }
+        }
+    }
+
+    private static void addFile(Map<String, List<String[]>> filesByDirectory, String path, String hash) {
+        int separator = path.lastIndexOf('/');
+        String directory = separator < 0 ? "" : path.substring(0, separator);
+        filesByDirectory.computeIfAbsent(directory, name -> new ArrayList<>())
+                .add(new String[]{path.substring(separator + 1), hash});
+    }
+
+    private static Map<String, String> readFiles(ByteBuffer buffer) {
+        Map<String, String> files = new HashMap<>();
+        long directoryCount = Varints.read(buffer);
+        for (long i = 0; i < directoryCount; i++) {
+            String directory = readString(buffer);
+            String prefix = directory.isEmpty() ? "" : directory + "/";
+            long fileCount = Varints.read(buffer);
+            for (long j = 0; j < fileCount; j++) {
+                String name = readString(buffer);
+                files.put(prefix + name, readHash(buffer));
+            }
+        }
+        return files;
+    }
+
+    private static void writeHash(ByteArrayOutputStream output, String hash) {
+        if (hash == null) {
+            output.write(DELETED);
+            return;
+        }
+        byte[] bytes = parseHex(hash);
+        if (bytes == null) {
+            output.write(STRING_HASH);
+            writeString(output, hash);
+        } else {
+            output.write(RAW_HASH);
+            output.writeBytes(bytes);
+        }
+    }
+
+    private static String readHash(ByteBuffer buffer) {
+        byte kind = buffer.get();
+        if (kind == DELETED) {
+            return null;
+        }
+        if (kind == STRING_HASH) {
+            return readString(buffer);
+        }
+        if (kind != RAW_HASH) {
+            throw new IllegalArgumentException("Unknown hash kind " + kind);
+        }
+        char[] hex = new char[ObjectId.HEX_LENGTH];
+        for (int i = 0; i < ObjectId.SIZE; i++) {
+            byte value = buffer.get();
+            hex[2 * i] = HEX_DIGITS[(value >> 4) & 0xF];
+            hex[2 * i + 1] = HEX_DIGITS[value & 0xF];
+        }
+        return new String(hex);
+    }
+
+    // bytes of a hash in the form of ObjectId, null for anything else
+    private static byte[] parseHex(String hash) {
+        if (hash.length() != ObjectId.HEX_LENGTH) {
+            return null;
+        }
+        byte[] bytes = new byte[ObjectId.SIZE];
+        for (int i = 0; i < ObjectId.SIZE; i++) {
+            int high = hexDigit(hash.charAt(2 * i));
+            int low = hexDigit(hash.charAt(2 * i + 1));
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return bytes;
+    }
+
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        return c >= 'a' && c <= 'f' ? c - 'a' + 10 : -1;
+    }
+
+    private static ObjectId readObjectId(ByteBuffer buffer) {
+        byte[] bytes = new byte[ObjectId.SIZE];
+        buffer.get(bytes);
+        return ObjectId.fromBytes(bytes);
+    }
+
+    private static void writeString(ByteArrayOutputStream output, String value) {
+        if (value == null) {
+            Varints.write(output, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        Varints.write(output, bytes.length + 1L);
+        output.writeBytes(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        long length = Varints.read(buffer);
+        if (length == 0) {
+            return null;
+        }
+        if (length - 1 > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), (int) (length - 1),
+                StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + (int) (length - 1));
+        return value;
+    }
+
+    private static void checkHeader(ByteBuffer buffer, byte[] magic) {
+        for (byte expected : magic) {
+            if (buffer.get() != expected) {
+                throw new IllegalArgumentException("Wrong magic");
+            }
+        }
+        if (Varints.read(buffer) != VERSION) {
+            throw new IllegalArgumentException("Unknown version");
+        }
+    }
+
+    private static boolean startsWith(byte[] content, byte[] magic) {
+        if (content.length < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (content[i] != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // read-only file map of a commit, decoded from its bytes on the first access. Corruption found then
+    // can't be a checked exception, Repository.readTrackedFiles turns it into GitException
+    private static class LazyFiles extends AbstractMap<String, String> {
+        private ByteBuffer encoded;
+        private Map<String, String> files;
+
+        LazyFiles(ByteBuffer encodedFiles) {
+            encoded = encodedFiles;
+        }
+
+        private Map<String, String> getFiles() {
+            if (files == null) {
+                try {
+                    files = Collections.unmodifiableMap(readFiles(encoded));
+                } catch (BufferUnderflowException | IllegalArgumentException exception) {
+                    throw new IllegalStateException("Corrupted commit", exception);
+                }
+                encoded = null;
+            }
+            return files;
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            return getFiles().entrySet();
+        }
+
+        @Override
+        public String get(Object key) {
+            return getFiles().get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return getFiles().containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            return getFiles().size();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package ru.hse.fmcs;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+import com.google.common.hash.Hashing;
+import org.jetbrains.annotations.NotNull;
+
+/*
+ * SHA-256 id of a commit or a tree held as four longs instead of a 64 character string:
+ * 32 bytes of payload, equals compares four words and hashCode is taken from the hash itself.
+ * Serialized to JSON as the usual lowercase hex string
+ */
+public final class ObjectId implements Comparable<ObjectId> {
+    public static final int SIZE = 32;
+    public static final int HEX_LENGTH = 2 * SIZE;
+
+    private final long word0;
+    private final long word1;
+    private final long word2;
+    private final long word3;
+
+    public ObjectId(long first, long second, long third, long fourth) {
+        word0 = first;
+        word1 = second;
+        word2 = third;
+        word3 = fourth;
+    }
+
+    public static ObjectId sha256(byte[] content) {
+        return fromBytes(Hashing.sha256().hashBytes(content).asBytes());
+    }
+
+    public static ObjectId fromBytes(byte[] bytes) {
+        if (bytes.length != SIZE) {
+            throw new IllegalArgumentException("Object id must have " + SIZE + " bytes");
+        }
+        return new ObjectId(getLong(bytes, 0), getLong(bytes, 1), getLong(bytes, 2), getLong(bytes, 3));
+    }
+
+    @JsonCreator
+    public static ObjectId fromString(@NotNull String hex) {
+        if (!isValid(hex)) {
+            throw new IllegalArgumentException("Invalid object id " + hex);
+        }
+        return new ObjectId(parseWord(hex, 0), parseWord(hex, 1), parseWord(hex, 2), parseWord(hex, 3));
+    }
+
+    public static boolean isValid(String hex) {
+        if (hex == null || hex.length() != HEX_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < HEX_LENGTH; i++) {
+            char c = hex.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long getWord(int index) {
+        switch (index) {
+            case 0:
+                return word0;
+            case 1:
+                return word1;
+            case 2:
+                return word2;
+            case 3:
+                return word3;
+            default:
+                throw new IndexOutOfBoundsException("Object id has no word " + index);
+        }
+    }
+
+    public byte[] toBytes() {
+        byte[] bytes = new byte[SIZE];
+        for (int word = 0; word < 4; word++) {
+            long value = getWord(word);
+            for (int i = Long.BYTES - 1; i >= 0; i--) {
+                bytes[word * Long.BYTES + i] = (byte) value;
+                value >>>= 8;
+            }
+        }
+        return bytes;
+    }
+
+    @JsonValue
+    @Override
+    public String toString() {
+        StringBuilder hex = new StringBuilder(HEX_LENGTH);
+        for (int word = 0; word < 4; word++) {
+            String digits = Long.toHexString(getWord(word));
+            for (int i = digits.length(); i < 2 * Long.BYTES; i++) {
+                hex.append('0');
+            }
+            hex.append(digits);
+        }
+        return hex.toString();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof ObjectId)) {
+            return false;
+        }
+        ObjectId id = (ObjectId) other;
+        return word0 == id.word0 && word1 == id.word1 && word2 == id.word2 && word3 == id.word3;
+    }
+
+    // the id is already a uniformly distributed hash, any of its bits will do
+    @Override
+    public int hashCode() {
+        return (int) (word0 >>> 32);
+    }
+
+    @Override
+    public int compareTo(@NotNull ObjectId other) {
+        int comparison = Long.compareUnsigned(word0, other.word0);
+        if (comparison == 0) {
+            comparison = Long.compareUnsigned(word1, other.word1);
+        }
+        if (comparison == 0) {
+            comparison = Long.compareUnsigned(word2, other.word2);
+        }
+        if (comparison == 0) {
+            comparison = Long.compareUnsigned(word3, other.word3);
+        }
+        return comparison;
+    }
+
+    private static long getLong(byte[] bytes, int index) {
+        long value = 0;
+        for (int i = index * Long.BYTES; i < (index + 1) * Long.BYTES; i++) {
+            value = (value << 8) | Byte.toUnsignedInt(bytes[i]);
+        }
+        return value;
+    }
+
+    private static long parseWord(String hex, int index) {
+        return Long.parseUnsignedLong(hex.substring(index * 16, (index + 1) * 16), 16);
+    }
+}
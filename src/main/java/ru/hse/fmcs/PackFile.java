@@ -0,0 +1,226 @@
+package ru.hse.fmcs;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.InflaterInputStream;
+
+/*
+ * Pack of blobs: every blob is deflated and stored either in full or as a delta
+ * against another blob of the same pack.
+ * Entry layout: type, uncompressed size, offset of the delta base (-1 for full blobs),
+ * compressed size, compressed data
+ */
+public class PackFile implements Closeable {
+    static final byte[] MAGIC = {'G', 'P', 'C', 'K'};
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = MAGIC.length + Integer.BYTES;
+    static final int ENTRY_HEADER_SIZE = 1 + 3 * Long.BYTES;
+    static final byte FULL = 0;
+    static final byte DELTA = 1;
+    static final int MAX_CHAIN_LENGTH = 4096;
+
+    private static final long DELTA_BASE_CACHE_SIZE = 32L << 20;
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    private final Path packFile;
+    private final FileChannel channel;
+    private final BlobIndex index;
+    private final Cache<Long, byte[]> deltaBaseCache = CacheBuilder.newBuilder()
+            .maximumWeight(DELTA_BASE_CACHE_SIZE)
+            .weigher((Long offset, byte[] content) -> content.length)
+            .build();
+
+    private PackFile(Path pack, FileChannel packChannel, BlobIndex packIndex) {
+        packFile = pack;
+        channel = packChannel;
+        index = packIndex;
+    }
+
+    public static PackFile open(@NotNull Path packFile, @NotNull Path indexFile) throws GitException {
+        BlobIndex index = BlobIndex.open(indexFile);
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(packFile, StandardOpenOption.READ);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header, 0);
+            byte[] magic = Arrays.copyOf(header.array(), MAGIC.length);
+            if (!Arrays.equals(magic, MAGIC) || header.getInt(MAGIC.length) != VERSION) {
+                throw new GitException("Corrupted pack " + packFile);
+            }
+            return new PackFile(packFile, channel, index);
+        } catch (IOException exception) {
+            closeQuietly(channel);
+            throw new GitException("Can't read pack " + packFile);
+        } catch (GitException exception) {
+            closeQuietly(channel);
+            throw exception;
+        }
+    }
+
+    public Path getPath() {
+        return packFile;
+    }
+
+    public BlobIndex getIndex() {
+        return index;
+    }
+
+    public boolean contains(@NotNull String blobHash) {
+        return index.find(blobHash) >= 0;
+    }
+
+    /*
+     * Full blobs are inflated while they are read, deltas are resolved in memory
+     */
+    public @NotNull InputStream open(@NotNull String blobHash) throws GitException {
+        long offset = findOffset(blobHash);
+        EntryHeader header = readHeader(offset);
+        if (header.type == FULL) {
+            return new InflaterInputStream(new BufferedInputStream(new ChannelInputStream(channel, header.dataOffset, header.compressedSize), STREAM_BUFFER_SIZE));
+        }
+        return new ByteArrayInputStream(readBytes(offset, 0));
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private long findOffset(String blobHash) throws GitException {
+        long offset = index.find(blobHash);
+        if (offset < 0) {
+            throw new GitException("Pack " + packFile + " doesn't contain blob " + blobHash);
+        }
+        return offset;
+    }
+
+    private byte[] readBytes(long offset, int chainLength) throws GitException {
+        if (chainLength > MAX_CHAIN_LENGTH) {
+            throw new GitException("Delta chain is too long in pack " + packFile);
+        }
+        byte[] cached = deltaBaseCache.getIfPresent(offset);
+        if (cached != null) {
+            return cached;
+        }
+        EntryHeader header = readHeader(offset);
+        byte[] data = inflate(header);
+        byte[] content = header.type == FULL ? data : BinaryDelta.apply(readBytes(header.baseOffset, chainLength + 1), data);
+        if (content.length != header.size) {
+            throw new GitException("Corrupted blob in pack " + packFile);
+        }
+        if (chainLength > 0) {
+            deltaBaseCache.put(offset, content);
+        }
+        return content;
+    }
+
+    private byte[] inflate(EntryHeader header) throws GitException {
+        long inflatedSize = header.type == FULL ? header.size : -1;
+        try (InputStream input = new InflaterInputStream(new BufferedInputStream(new ChannelInputStream(channel, header.dataOffset, header.compressedSize), STREAM_BUFFER_SIZE))) {
+            byte[] data = input.readAllBytes();
+            if (inflatedSize >= 0 && data.length != inflatedSize) {
+                throw new GitException("Corrupted blob in pack " + packFile);
+            }
+            return data;
+        } catch (IOException exception) {
+            throw new GitException("Can't read pack " + packFile);
+        }
+    }
+
+    private EntryHeader readHeader(long offset) throws GitException {
+        ByteBuffer buffer = ByteBuffer.allocate(ENTRY_HEADER_SIZE);
+        try {
+            readFully(channel, buffer, offset);
+        } catch (IOException exception) {
+            throw new GitException("Can't read pack " + packFile);
+        }
+        buffer.flip();
+        byte type = buffer.get();
+        if (type != FULL && type != DELTA) {
+            throw new GitException("Corrupted pack " + packFile);
+        }
+        return new EntryHeader(type, buffer.getLong(), buffer.getLong(), buffer.getLong(), offset + ENTRY_HEADER_SIZE);
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            position += read;
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static class EntryHeader {
+        private final byte type;
+        private final long size;
+        private final long baseOffset;
+        private final long compressedSize;
+        private final long dataOffset;
+
+        EntryHeader(byte entryType, long entrySize, long entryBaseOffset, long entryCompressedSize, long entryDataOffset) {
+            type = entryType;
+            size = entrySize;
+            baseOffset = entryBaseOffset;
+            compressedSize = entryCompressedSize;
+            dataOffset = entryDataOffset;
+        }
+    }
+
+    /*
+     * Reads a region of the pack with positional reads, so several streams can share the channel
+     */
+    private static class ChannelInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+        private final long end;
+
+        ChannelInputStream(FileChannel fileChannel, long start, long length) {
+            channel = fileChannel;
+            position = start;
+            end = start + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : Byte.toUnsignedInt(single[0]);
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            int toRead = (int) Math.min(length, end - position);
+            int read = channel.read(ByteBuffer.wrap(bytes, offset, toRead), position);
+            if (read < 0) {
+                return -1;
+            }
+            position += read;
+            return read;
+        }
+    }
+}
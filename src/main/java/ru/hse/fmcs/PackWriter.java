@@ -0,0 +1,154 @@
+package ru.hse.fmcs;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.CountingOutputStream;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/*
+ * Writes a new pack to a temporary file, the pack and its index get their final names in finish()
+ */
+public class PackWriter implements Closeable {
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    private final Path packsDirectory;
+    private final Path temporaryPack;
+    private final FileChannel channel;
+    private final Map<String, Long> offsets = new HashMap<>();
+    private int deltaCount;
+    private boolean finished;
+
+    public PackWriter(@NotNull Path packsDir) throws GitException {
+        packsDirectory = packsDir;
+        try {
+            Files.createDirectories(packsDirectory);
+            temporaryPack = Files.createTempFile(packsDirectory, "pack", ".tmp");
+            channel = FileChannel.open(temporaryPack, StandardOpenOption.WRITE);
+            ByteBuffer header = ByteBuffer.allocate(PackFile.HEADER_SIZE);
+            header.put(PackFile.MAGIC).putInt(PackFile.VERSION).flip();
+            write(header, 0);
+        } catch (IOException exception) {
+            throw new GitException("Can't create a pack in " + packsDirectory);
+        }
+    }
+
+    public boolean contains(@NotNull String blobHash) {
+        return offsets.containsKey(blobHash);
+    }
+
+    public int getObjectCount() {
+        return offsets.size();
+    }
+
+    public int getDeltaCount() {
+        return deltaCount;
+    }
+
+    public void writeFull(@NotNull String blobHash, @NotNull InputStream content) throws GitException {
+        try {
+            long start = channel.size();
+            channel.position(start + PackFile.ENTRY_HEADER_SIZE);
+            CountingOutputStream compressedBytes = new CountingOutputStream(Channels.newOutputStream(channel));
+            Deflater deflater = new Deflater();
+            long size;
+            try {
+                DeflaterOutputStream output = new DeflaterOutputStream(compressedBytes, deflater, STREAM_BUFFER_SIZE);
+                size = content.transferTo(output);
+                output.finish();
+                output.flush();
+            } finally {
+                deflater.end();
+            }
+            writeEntryHeader(start, PackFile.FULL, size, -1, compressedBytes.getCount());
+            offsets.put(blobHash, start);
+        } catch (IOException exception) {
+            throw new GitException("Can't write blob " + blobHash + " to pack");
+        }
+    }
+
+    public void writeDelta(@NotNull String blobHash, long size, @NotNull String baseHash, byte[] delta) throws GitException {
+        Long baseOffset = offsets.get(baseHash);
+        if (baseOffset == null) {
+            throw new GitException("Delta base " + baseHash + " isn't in the pack yet");
+        }
+        try {
+            long start = channel.size();
+            channel.position(start + PackFile.ENTRY_HEADER_SIZE);
+            CountingOutputStream compressedBytes = new CountingOutputStream(Channels.newOutputStream(channel));
+            Deflater deflater = new Deflater();
+            try {
+                DeflaterOutputStream output = new DeflaterOutputStream(compressedBytes, deflater, STREAM_BUFFER_SIZE);
+                output.write(delta);
+                output.finish();
+                output.flush();
+            } finally {
+                deflater.end();
+            }
+            writeEntryHeader(start, PackFile.DELTA, size, baseOffset, compressedBytes.getCount());
+            offsets.put(blobHash, start);
+            deltaCount++;
+        } catch (IOException exception) {
+            throw new GitException("Can't write blob " + blobHash + " to pack");
+        }
+    }
+
+    /*
+     * Names the pack after the hashes it contains and writes its index, returns the pack path
+     */
+    public Path finish() throws GitException {
+        Hasher hasher = Hashing.sha256().newHasher();
+        for (String blobHash : new TreeSet<>(offsets.keySet())) {
+            hasher.putUnencodedChars(blobHash);
+        }
+        String packName = "pack-" + hasher.hash();
+        Path packFile = packsDirectory.resolve(packName + GitConstants.PACK_EXTENSION);
+        Path indexFile = packsDirectory.resolve(packName + GitConstants.PACK_INDEX_EXTENSION);
+        try {
+            channel.force(true);
+            channel.close();
+            Files.move(temporaryPack, packFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            Path temporaryIndex = Files.createTempFile(packsDirectory, "index", ".tmp");
+            BlobIndex.write(temporaryIndex, offsets);
+            Files.move(temporaryIndex, indexFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            finished = true;
+            return packFile;
+        } catch (IOException exception) {
+            throw new GitException("Can't write pack " + packFile);
+        }
+    }
+
+    public void close() throws IOException {
+        channel.close();
+        if (!finished) {
+            Files.deleteIfExists(temporaryPack);
+        }
+    }
+
+    private void writeEntryHeader(long start, byte type, long size, long baseOffset, long compressedSize) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(PackFile.ENTRY_HEADER_SIZE);
+        header.put(type).putLong(size).putLong(baseOffset).putLong(compressedSize).flip();
+        write(header, start);
+    }
+
+    private void write(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/*
+ * Named refs (branches) in two places, like in git: loose refs are files in git/refs/heads
+ * holding a commit hash, and git/packed-refs keeps many refs in one file as "<hash> <name>"
+ * lines sorted by name, so a ref is found there with a binary search. A loose ref overrides
+ * a packed one. New and moved refs are written as loose refs, gc packs them all.
+ * Changes are kept in memory until save() puts them into the journal
+ */
+public class RefStore {
+    public static final @NotNull String LOOSE_REFS_READ = "Loose refs read";
+    public static final @NotNull String REFS_PACKED = "Refs packed";
+
+    private static final @NotNull String PACKED_REFS_HEADER = "# packed-refs sorted\n";
+    private static final Pattern REF_NAME = Pattern.compile("[A-Za-z0-9_][A-Za-z0-9._-]*(/[A-Za-z0-9_][A-Za-z0-9._-]*)*");
+    private static final int LINE_PREFIX_LENGTH = ObjectId.HEX_LENGTH + 1;
+
+    private final Path refsDirectory;
+    private final Path packedRefsFile;
+    private final Journal journal;
+    private final CommandStatistics statistics;
+    // a null value marks a deleted ref
+    private final Map<String, ObjectId> changes = new HashMap<>();
+    private PackedRefs packedRefs;
+
+    public RefStore(@NotNull Path refsDir, @NotNull Path packedRefs, @NotNull Journal metainfoJournal,
+                    @NotNull CommandStatistics commandStatistics) {
+        refsDirectory = refsDir;
+        packedRefsFile = packedRefs;
+        journal = metainfoJournal;
+        statistics = commandStatistics;
+    }
+
+    public static boolean isValidName(@NotNull String name) {
+        return REF_NAME.matcher(name).matches() && !name.contains("..") && !name.endsWith(".");
+    }
+
+    /*
+     * Commit the ref points to or null if there is no such ref
+     */
+    public ObjectId resolve(@NotNull String name) throws GitException {
+        if (changes.containsKey(name)) {
+            return changes.get(name);
+        }
+        if (!isValidName(name)) {
+            return null;
+        }
+        Path looseRef = refsDirectory.resolve(name);
+        if (Files.isRegularFile(looseRef)) {
+            statistics.increment(LOOSE_REFS_READ);
+            return readLooseRef(looseRef);
+        }
+        return getPackedRefs().find(name);
+    }
+
+    public void update(@NotNull String name, @NotNull ObjectId commitHash) throws GitException {
+        if (!isValidName(name)) {
+            throw new GitException("Invalid branch name " + name);
+        }
+        changes.put(name, commitHash);
+    }
+
+    public void delete(@NotNull String name) {
+        changes.put(name, null);
+    }
+
+    /*
+     * All refs sorted by name
+     */
+    public SortedMap<String, ObjectId> list() throws GitException {
+        SortedMap<String, ObjectId> refs = getPackedRefs().list();
+        if (Files.isDirectory(refsDirectory)) {
+            try (Stream<Path> files = Files.walk(refsDirectory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    String name = getName(file);
+                    if (Files.isRegularFile(file) && isValidName(name)) {
+                        statistics.increment(LOOSE_REFS_READ);
+                        refs.put(name, readLooseRef(file));
+                    }
+                }
+            } catch (IOException exception) {
+                throw new GitException("Can't list refs");
+            }
+        }
+        for (Map.Entry<String, ObjectId> change : changes.entrySet()) {
+            if (change.getValue() == null) {
+                refs.remove(change.getKey());
+            } else {
+                refs.put(change.getKey(), change.getValue());
+            }
+        }
+        return refs;
+    }
+
+    /*
+     * Journals changed refs as loose refs and removes deleted ones, packed-refs is rewritten
+     * only if a deleted ref is packed. They reach the disk when the journal is committed,
+     * which the caller does right away
+     */
+    public void save() throws GitException {
+        try {
+            // deletions go first, they may free a directory name for a new ref
+            boolean deletedPackedRef = false;
+            for (Map.Entry<String, ObjectId> change : changes.entrySet()) {
+                if (change.getValue() == null) {
+                    journal.delete(refsDirectory.resolve(change.getKey()));
+                    deletedPackedRef |= getPackedRefs().find(change.getKey()) != null;
+                }
+            }
+            for (Map.Entry<String, ObjectId> change : changes.entrySet()) {
+                Path looseRef = refsDirectory.resolve(change.getKey());
+                if (change.getValue() != null) {
+                    if (Files.isDirectory(looseRef) && !isDeletedDirectory(looseRef)) {
+                        throw new GitException("Branch " + change.getKey() + " conflicts with other branches");
+                    }
+                    journal.write(looseRef, change.getValue().toString().getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            if (deletedPackedRef) {
+                SortedMap<String, ObjectId> packed = getPackedRefs().list();
+                for (Map.Entry<String, ObjectId> change : changes.entrySet()) {
+                    if (change.getValue() == null) {
+                        packed.remove(change.getKey());
+                    }
+                }
+                byte[] content = encodePackedRefs(packed);
+                journal.write(packedRefsFile, content);
+                packedRefs = new PackedRefs(content);
+            }
+            changes.clear();
+        } catch (IOException exception) {
+            throw new GitException("Error while writing refs");
+        }
+    }
+
+    /*
+     * Moves all loose refs into packed-refs. Loose refs are deleted only after packed-refs
+     * is written, so every ref stays readable at any moment
+     */
+    public void pack() throws GitException {
+        save();
+        journal.commit();
+        SortedMap<String, ObjectId> refs = list();
+        try {
+            GitFiles.writeAtomically(packedRefsFile, encodePackedRefs(refs));
+            packedRefs = null;
+            List<Path> looseRefs = new ArrayList<>();
+            if (Files.isDirectory(refsDirectory)) {
+                try (Stream<Path> files = Files.walk(refsDirectory)) {
+                    files.filter(Files::isRegularFile).forEach(looseRefs::add);
+                }
+            }
+            for (Path looseRef : looseRefs) {
+                deleteLooseRef(looseRef);
+            }
+            statistics.add(REFS_PACKED, refs.size());
+        } catch (IOException exception) {
+            throw new GitException("Error while packing refs");
+        }
+    }
+
+    private static byte[] encodePackedRefs(SortedMap<String, ObjectId> refs) {
+        StringBuilder content = new StringBuilder(PACKED_REFS_HEADER);
+        for (Map.Entry<String, ObjectId> ref : refs.entrySet()) {
+            content.append(ref.getValue()).append(' ').append(ref.getKey()).append('\n');
+        }
+        return content.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // a directory may become a ref if all refs in it are deleted by the same save
+    private boolean isDeletedDirectory(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            return files.filter(Files::isRegularFile).allMatch(file -> {
+                String name = getName(file);
+                return changes.containsKey(name) && changes.get(name) == null;
+            });
+        }
+    }
+
+    private String getName(Path looseRef) {
+        return refsDirectory.relativize(looseRef).toString().replace(looseRef.getFileSystem().getSeparator(), "/");
+    }
+
+    // directories of nested branch names are removed once they are empty
+    private void deleteLooseRef(Path looseRef) throws IOException {
+        Files.deleteIfExists(looseRef);
+        for (Path directory = looseRef.getParent(); !directory.equals(refsDirectory); directory = directory.getParent()) {
+            if (!Files.isDirectory(directory)) {
+                continue;
+            }
+            try (Stream<Path> children = Files.list(directory)) {
+                if (children.findAny().isPresent()) {
+                    break;
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    private PackedRefs getPackedRefs() throws GitException {
+        if (packedRefs == null) {
+            try {
+                packedRefs = new PackedRefs(Files.exists(packedRefsFile) ? Files.readAllBytes(packedRefsFile) : new byte[0]);
+            } catch (IOException exception) {
+                throw new GitException("Can't read " + packedRefsFile);
+            }
+        }
+        return packedRefs;
+    }
+
+    private static ObjectId readLooseRef(Path looseRef) throws GitException {
+        String content;
+        try {
+            content = Files.readString(looseRef, StandardCharsets.UTF_8).trim();
+        } catch (IOException exception) {
+            throw new GitException("Can't read ref " + looseRef);
+        }
+        if (!ObjectId.isValid(content)) {
+            throw new GitException("Corrupted reference " + looseRef);
+        }
+        return ObjectId.fromString(content);
+    }
+
+    /*
+     * Content of packed-refs with the offsets of its lines, names are compared as bytes,
+     * which is their sort order since names are ASCII
+     */
+    private static class PackedRefs {
+        private final byte[] content;
+        private final int[] lineStarts;
+        private final int lineCount;
+
+        private PackedRefs(byte[] fileContent) throws GitException {
+            content = fileContent;
+            List<Integer> starts = new ArrayList<>();
+            for (int start = 0; start < content.length; ) {
+                int end = lineEnd(start);
+                if (content[start] != '#') {
+                    if (end - start <= LINE_PREFIX_LENGTH || content[start + ObjectId.HEX_LENGTH] != ' ') {
+                        throw new GitException("Corrupted packed refs");
+                    }
+                    starts.add(start);
+                }
+                start = end + 1;
+            }
+            lineCount = starts.size();
+            lineStarts = new int[lineCount];
+            for (int i = 0; i < lineCount; i++) {
+                lineStarts[i] = starts.get(i);
+            }
+        }
+
+        private ObjectId find(String name) throws GitException {
+            byte[] key = name.getBytes(StandardCharsets.UTF_8);
+            int low = 0;
+            int high = lineCount - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int comparison = compareName(lineStarts[middle], key);
+                if (comparison < 0) {
+                    low = middle + 1;
+                } else if (comparison > 0) {
+                    high = middle - 1;
+                } else {
+                    return getHash(lineStarts[middle]);
+                }
+            }
+            return null;
+        }
+
+        private SortedMap<String, ObjectId> list() throws GitException {
+            SortedMap<String, ObjectId> refs = new TreeMap<>();
+            for (int i = 0; i < lineCount; i++) {
+                int nameStart = lineStarts[i] + LINE_PREFIX_LENGTH;
+                refs.put(new String(content, nameStart, lineEnd(nameStart) - nameStart, StandardCharsets.UTF_8), getHash(lineStarts[i]));
+            }
+            return refs;
+        }
+
+        private int compareName(int lineStart, byte[] key) {
+            int nameStart = lineStart + LINE_PREFIX_LENGTH;
+            int nameLength = lineEnd(nameStart) - nameStart;
+            for (int i = 0; i < Math.min(nameLength, key.length); i++) {
+                int comparison = Byte.compareUnsigned(content[nameStart + i], key[i]);
+                if (comparison != 0) {
+                    return comparison;
+                }
+            }
+            return Integer.compare(nameLength, key.length);
+        }
+
+        private ObjectId getHash(int lineStart) throws GitException {
+            String hex = new String(content, lineStart, ObjectId.HEX_LENGTH, StandardCharsets.US_ASCII);
+            if (!ObjectId.isValid(hex)) {
+                throw new GitException("Corrupted packed refs");
+            }
+            return ObjectId.fromString(hex);
+        }
+
+        private int lineEnd(int start) {
+            int end = start;
+            while (end < content.length && content[end] != '\n') {
+                end++;
+            }
+            return end;
+        }
+    }
+}
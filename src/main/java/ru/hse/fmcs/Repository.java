@@ -1,33 +1,275 @@
 package ru.hse.fmcs;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.hash.Hashing;
-import java.time.LocalDate;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.util.*;
 
 public class Repository {
-    private final Map<String, Commit> commits;
+    // commits kept in memory once read, log and gc walk histories of any length through the cache
+    private static final int CACHED_COMMITS = 1024;
+
+    private final CommitStore commitStore;
+    private final TreeStore treeStore;
+    private final CommitGraph commitGraph;
+    private final Map<ObjectId, Commit> commits;
+    private final List<Commit> newCommits;
+    private final RefStore refs;
     private final String workingDirectory;
     private StagingArea stagingArea;
     private Commit head;
+    private String currentBranch;
+    private ObjectId mergeHead;
 
-    public Repository(String workingDir) {
+    public Repository(String workingDir, CommitStore store, TreeStore trees, CommitGraph graph, RefStore refStore)
+            throws GitException {
         workingDirectory = workingDir;
+        commitStore = store;
+        treeStore = trees;
+        commitGraph = graph;
         stagingArea = new StagingArea();
-        commits = new HashMap<>();
-        head = new Commit();
+        commits = createCache();
+        newCommits = new ArrayList<>();
+        refs = refStore;
+        head = new Commit("Initial commit", null, treeStore.write(new Tree()));
+        addCommit(head);
+        currentBranch = GitConstants.MASTER;
+        refs.update(currentBranch, head.getCommitHash());
     }
 
-    public Repository() {
-        commits = new HashMap<>();
-        workingDirectory = "";
-        stagingArea = new StagingArea();
-        head = new Commit();
-        commits.put(head.commitHash, head);
+    public Repository(String workingDir, CommitStore store, TreeStore trees, CommitGraph graph, RefStore refStore,
+                      StagingArea staging, Commit headCommit, String branch) {
+        workingDirectory = workingDir;
+        commitStore = store;
+        treeStore = trees;
+        commitGraph = graph;
+        stagingArea = staging;
+        commits = createCache();
+        newCommits = new ArrayList<>();
+        refs = refStore;
+        head = headCommit;
+        currentBranch = branch;
+    }
+
+    private static Map<ObjectId, Commit> createCache() {
+        return new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ObjectId, Commit> eldest) {
+                return size() > CACHED_COMMITS;
+            }
+        };
+    }
+
+    /*
+     * Commit with the given hash, commits are read from the store when they are needed and only
+     * the recently used ones stay in memory. Commits that haven't been written yet are never dropped
+     */
+    public Commit getCommit(ObjectId commitHash) throws GitException {
+        if (commitHash == null) {
+            return null;
+        }
+        if (commitHash.equals(head.getCommitHash())) {
+            return head;
+        }
+        Commit commit = commits.get(commitHash);
+        if (commit == null) {
+            commit = findNewCommit(commitHash);
+        }
+        if (commit == null) {
+            commit = commitStore.read(commitHash);
+            if (commit != null) {
+                commits.put(commitHash, commit);
+            }
+        }
+        return commit;
+    }
+
+    /*
+     * Whether the commit exists, the commit itself isn't read
+     */
+    public boolean hasCommit(ObjectId commitHash) {
+        return commits.containsKey(commitHash) || findNewCommit(commitHash) != null
+                || commitGraph.find(commitHash) >= 0 || commitStore.contains(commitHash);
+    }
+
+    private Commit findNewCommit(ObjectId commitHash) {
+        for (Commit commit : newCommits) {
+            if (commit.getCommitHash().equals(commitHash)) {
+                return commit;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Root tree of the commit. Commits written before trees existed keep a flat file map,
+     * their tree is built from it and written, so only commands under the exclusive lock call this
+     */
+    public ObjectId getTreeHash(Commit commit) throws GitException {
+        if (commit.getTree() != null) {
+            return commit.getTree();
+        }
+        return treeStore.update(null, readTrackedFiles(commit));
+    }
+
+    /*
+     * Every file of the commit by its path. Nothing is written, read-only commands run under
+     * the shared lock
+     */
+    public Map<String, String> getTrackedFiles(Commit commit) throws GitException {
+        if (commit.getTree() == null) {
+            return readTrackedFiles(commit);
+        }
+        return treeStore.flatten(commit.getTree());
+    }
+
+    /*
+     * Flat file map of a commit written before trees existed. Stored commits decode it on the first
+     * access, so this is where a corrupted one is found
+     */
+    static Map<String, String> readTrackedFiles(Commit commit) throws GitException {
+        if (commit.getTrackedFiles() == null) {
+            return new HashMap<>();
+        }
+        try {
+            return new HashMap<>(commit.getTrackedFiles());
+        } catch (IllegalStateException exception) {
+            throw new GitException("Corrupted commit " + commit.getCommitHash());
+        }
+    }
+
+    /*
+     * Root tree of the commit with staged changes applied, only changed directories are written
+     */
+    public ObjectId writeTree(Commit base, StagingArea staging) throws GitException {
+        Map<String, String> changes = new HashMap<>();
+        for (String file : staging.getDeletedFiles()) {
+            changes.put(file, null);
+        }
+        changes.putAll(staging.getAddedFiles());
+        return treeStore.update(getTreeHash(base), changes);
     }
 
-    public Map <String, Commit> getCommits() {
-        return commits;
+    public TreeStore getTreeStore() {
+        return treeStore;
+    }
+
+    public void addCommit(Commit commit) throws GitException {
+        newCommits.add(commit);
+        commitGraph.add(commit.getCommitHash(), getParentPosition(commit.getPreviousCommit()),
+                getParentPosition(commit.getMergedCommit()));
+    }
+
+    /*
+     * Commit the given number of first parents before this one or null if the history is shorter,
+     * only the commit graph is read
+     */
+    public ObjectId getAncestor(ObjectId commitHash, int generations) throws GitException {
+        int position = getGraphPosition(commitHash);
+        for (int i = 0; i < generations && position != CommitGraph.NO_PARENT; i++) {
+            position = commitGraph.getParent(position, 0);
+        }
+        return position == CommitGraph.NO_PARENT ? null : commitGraph.getId(position);
+    }
+
+    /*
+     * Whether the first commit is in the history of the second one, a commit is in its own history
+     */
+    public boolean isAncestor(ObjectId ancestor, ObjectId descendant) throws GitException {
+        return commitGraph.isAncestor(getGraphPosition(ancestor), getGraphPosition(descendant));
+    }
+
+    public CommitGraph getCommitGraph() {
+        return commitGraph;
+    }
+
+    /*
+     * Best common ancestor of two commits or null if their histories are unrelated
+     */
+    public ObjectId getMergeBase(ObjectId first, ObjectId second) throws GitException {
+        int mergeBase = commitGraph.getMergeBase(getGraphPosition(first), getGraphPosition(second));
+        return mergeBase == CommitGraph.NO_PARENT ? null : commitGraph.getId(mergeBase);
+    }
+
+    /*
+     * Commit being merged after a merge stopped on conflicts, the next commit gets it as the second parent
+     */
+    public ObjectId getMergeHead() {
+        return mergeHead;
+    }
+
+    public void setMergeHead(ObjectId commitHash) {
+        mergeHead = commitHash;
+    }
+
+    /*
+     * Position of the commit in the commit graph. Commits of repositories created before the graph
+     * existed are added to it the first time they are needed, parents before children
+     */
+    private int getGraphPosition(ObjectId commitHash) throws GitException {
+        int position = commitGraph.find(commitHash);
+        if (position >= 0) {
+            return position;
+        }
+        Deque<Commit> missingCommits = new ArrayDeque<>();
+        missingCommits.push(loadCommit(commitHash));
+        while (!missingCommits.isEmpty()) {
+            Commit commit = missingCommits.peek();
+            ObjectId missingParent = null;
+            for (ObjectId parent : Arrays.asList(commit.getPreviousCommit(), commit.getMergedCommit())) {
+                if (parent != null && commitGraph.find(parent) < 0) {
+                    missingParent = parent;
+                }
+            }
+            if (missingParent != null) {
+                missingCommits.push(loadCommit(missingParent));
+                continue;
+            }
+            missingCommits.pop();
+            position = commitGraph.add(commit.getCommitHash(), getParentPosition(commit.getPreviousCommit()),
+                    getParentPosition(commit.getMergedCommit()));
+        }
+        return position;
+    }
+
+    private int getParentPosition(ObjectId parent) throws GitException {
+        return parent == null ? CommitGraph.NO_PARENT : getGraphPosition(parent);
+    }
+
+    private Commit loadCommit(ObjectId commitHash) throws GitException {
+        Commit commit = getCommit(commitHash);
+        if (commit == null) {
+            throw new GitException("There are no commits with given hash");
+        }
+        return commit;
+    }
+
+    /*
+     * Rewrites commits of older versions in the current format of the commit store
+     */
+    public void convertLegacyCommits() throws GitException {
+        commitStore.convertLegacyCommits();
+    }
+
+    /*
+     * Hashes of all stored commits, including unreachable ones
+     */
+    public Set<ObjectId> getCommitHashes() throws GitException {
+        Set<ObjectId> commitHashes = new HashSet<>(commitStore.listCommitHashes());
+        for (Commit commit : newCommits) {
+            commitHashes.add(commit.getCommitHash());
+        }
+        return commitHashes;
+    }
+
+    /*
+     * Commits created since the repository was loaded, they haven't been written yet
+     */
+    public List<Commit> getNewCommits() {
+        return newCommits;
     }
 
     public String getWorkingDirectory() {
@@ -50,6 +292,21 @@ public class Repository {
         head = newHead;
     }
 
+    /*
+     * Branch HEAD points to or null if HEAD is detached
+     */
+    public String getCurrentBranch() {
+        return currentBranch;
+    }
+
+    public void setCurrentBranch(String branch) {
+        currentBranch = branch;
+    }
+
+    public RefStore getRefs() {
+        return refs;
+    }
+
     public static class StagingArea {
         private final Map<String, String> addedFiles;
         private final Set<String> deletedFiles;
@@ -79,31 +336,43 @@ public class Repository {
         }
     }
 
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    @JsonInclude(JsonInclude.Include.NON_NULL)
     public static class Commit {
-        private final String commitHash;
-        private String nextCommit;
-        private final String previousCommit;
+        private final ObjectId commitHash;
+        private final ObjectId previousCommit;
+        private final ObjectId mergedCommit;
+        private final ObjectId tree;
         private final Map<String, String> trackedFiles;
         private final String date;
         private final String message;
         private final String user;
 
-        public String getCommitHash() {
+        public ObjectId getCommitHash() {
             return commitHash;
         }
 
-        public String getNextCommit() {
-            return nextCommit;
+        /*
+         * Parent of the commit or null for the initial commit
+         */
+        public ObjectId getPreviousCommit() {
+            return previousCommit;
         }
 
-        public void setNextCommit(String newNextCommit) {
-            nextCommit = newNextCommit;
+        /*
+         * Second parent of a merge commit, null for other commits
+         */
+        public ObjectId getMergedCommit() {
+            return mergedCommit;
         }
 
-        public String getPreviousCommit() {
-            return previousCommit;
+        public ObjectId getTree() {
+            return tree;
         }
 
+        /*
+         * Flat file map of commits written before trees existed, null for newer commits
+         */
         public Map<String, String> getTrackedFiles() {
             return trackedFiles;
         }
@@ -120,32 +389,58 @@ public class Repository {
             return user;
         }
 
-        public Commit() {
-            commitHash = Hashing.sha256().hashInt(this.hashCode()).toString();
-            nextCommit = "";
-            previousCommit = "";
-            trackedFiles = new HashMap<>();
-            date = LocalDate.now().toString();
-            message = "Initial commit";
-            user = "Test user";
+        // older commits mark the initial commit with an empty parent
+        @JsonCreator
+        private Commit(@JsonProperty("commitHash") String commitHash, @JsonProperty("previousCommit") String previousCommit,
+                       @JsonProperty("mergedCommit") ObjectId mergedCommit, @JsonProperty("tree") ObjectId tree,
+                       @JsonProperty("trackedFiles") Map<String, String> trackedFiles, @JsonProperty("date") String date,
+                       @JsonProperty("message") String message, @JsonProperty("user") String user) {
+            this(ObjectId.fromString(commitHash),
+                    previousCommit == null || previousCommit.isEmpty() ? null : ObjectId.fromString(previousCommit),
+                    mergedCommit, tree, trackedFiles, date, message, user);
+        }
+
+        // a commit as it was stored
+        Commit(ObjectId commitHash, ObjectId previousCommit, ObjectId mergedCommit, ObjectId tree,
+               Map<String, String> trackedFiles, String date, String message, String user) {
+            this.commitHash = commitHash;
+            this.previousCommit = previousCommit;
+            this.mergedCommit = mergedCommit;
+            this.tree = tree;
+            this.trackedFiles = trackedFiles;
+            this.date = date;
+            this.message = message;
+            this.user = user;
+        }
+
+        public Commit(String message, Commit head, ObjectId treeHash) {
+            this(message, head, null, treeHash);
         }
 
-        public Commit(String message, Commit head, StagingArea stagingArea) {
-            date = LocalDate.now().toString();
+        public Commit(String message, Commit head, ObjectId mergedHash, ObjectId treeHash) {
+            date = Instant.now().toString();
             this.message = message;
-            nextCommit = "";
-            previousCommit = head.getCommitHash();
-            trackedFiles = new HashMap<>();
-            for (String file : head.trackedFiles.keySet()) {
-                trackedFiles.put(file, head.trackedFiles.get(file));
+            previousCommit = head == null ? null : head.getCommitHash();
+            mergedCommit = mergedHash;
+            tree = treeHash;
+            trackedFiles = null;
+            user = "Test user";
+            commitHash = ObjectId.sha256(getContent());
+        }
+
+        // the id is the hash of everything the commit consists of, in a fixed text form
+        private byte[] getContent() {
+            StringBuilder content = new StringBuilder();
+            content.append("tree ").append(tree).append('\n');
+            if (previousCommit != null) {
+                content.append("parent ").append(previousCommit).append('\n');
             }
-            commitHash = Hashing.sha256().hashInt(this.hashCode()).toString();
-            head.nextCommit = commitHash;
-            for (String file : stagingArea.deletedFiles) {
-                trackedFiles.remove(file);
+            if (mergedCommit != null) {
+                content.append("parent ").append(mergedCommit).append('\n');
             }
-            user = "Test user";
-            trackedFiles.putAll(stagingArea.addedFiles);
+            content.append("author ").append(user).append(' ').append(date).append('\n');
+            content.append('\n').append(message);
+            return content.toString().getBytes(StandardCharsets.UTF_8);
         }
     }
 }
@@ -0,0 +1,222 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/*
+ * Blob store of a repository: new blobs are written loose, old ones may live in packs
+ */
+public class RepositoryBlobStore extends LooseBlobStore implements Closeable {
+    public static final @NotNull String BLOBS_PACKED = "Blobs packed";
+    public static final @NotNull String DELTAS_PACKED = "Blobs packed as deltas";
+
+    // bigger blobs are packed as is, without looking for a delta
+    private static final int MAX_DELTA_BLOB_SIZE = 64 << 20;
+
+    private final Path packsDirectory;
+    private final CommandStatistics statistics;
+    private List<PackFile> packs;
+
+    public RepositoryBlobStore(@NotNull Path blobsDir, @NotNull Path packsDir, @NotNull BlobCodec blobCodec,
+                               @NotNull CommandStatistics commandStatistics) {
+        super(blobsDir, blobCodec, commandStatistics);
+        packsDirectory = packsDir;
+        statistics = commandStatistics;
+    }
+
+    @Override
+    public boolean contains(@NotNull String blobHash) {
+        if (super.contains(blobHash)) {
+            return true;
+        }
+        try {
+            return findPack(blobHash) != null;
+        } catch (GitException exception) {
+            return false;
+        }
+    }
+
+    @Override
+    public @NotNull InputStream open(@NotNull String blobHash) throws GitException {
+        PackFile pack = isLoose(blobHash) ? null : findPack(blobHash);
+        return pack == null ? super.open(blobHash) : pack.open(blobHash);
+    }
+
+    @Override
+    public void restore(@NotNull String blobHash, @NotNull Path target) throws GitException {
+        PackFile pack = isLoose(blobHash) ? null : findPack(blobHash);
+        if (pack == null) {
+            super.restore(blobHash, target);
+            return;
+        }
+        try {
+            Files.createDirectories(target.getParent());
+            try (InputStream input = pack.open(blobHash);
+                 OutputStream output = Files.newOutputStream(target)) {
+                input.transferTo(output);
+            }
+        } catch (IOException exception) {
+            throw new GitException("Can't restore file " + target + " from blob " + blobHash);
+        }
+    }
+
+    /*
+     * Packs all loose and packed blobs into a single new pack. Versions of the same path
+     * (given newest first) are stored as deltas against the next newer version,
+     * chains are cut after maxDepth deltas
+     */
+    public void repack(@NotNull Map<String, List<String>> versionsByPath, int maxDepth) throws GitException {
+        Set<String> blobs = new LinkedHashSet<>(listLooseBlobs());
+        List<PackFile> oldPacks = getPacks();
+        for (PackFile pack : oldPacks) {
+            for (int i = 0; i < pack.getIndex().size(); i++) {
+                blobs.add(pack.getIndex().getHash(i));
+            }
+        }
+        if (blobs.isEmpty()) {
+            return;
+        }
+        Path newPack;
+        try (PackWriter writer = new PackWriter(packsDirectory)) {
+            Map<String, Integer> depths = new HashMap<>();
+            for (List<String> versions : versionsByPath.values()) {
+                byte[] previous = null;
+                String previousHash = null;
+                for (String blobHash : versions) {
+                    if (!blobs.contains(blobHash)) {
+                        continue;
+                    }
+                    byte[] content = readLimited(blobHash);
+                    if (!writer.contains(blobHash)) {
+                        if (content == null) {
+                            writeFull(writer, blobHash);
+                        } else if (previous != null && depths.get(previousHash) < maxDepth) {
+                            byte[] delta = BinaryDelta.create(previous, content);
+                            if (delta.length < content.length / 2) {
+                                writer.writeDelta(blobHash, content.length, previousHash, delta);
+                                depths.put(blobHash, depths.get(previousHash) + 1);
+                            } else {
+                                writer.writeFull(blobHash, new ByteArrayInputStream(content));
+                                depths.put(blobHash, 0);
+                            }
+                        } else {
+                            writer.writeFull(blobHash, new ByteArrayInputStream(content));
+                            depths.put(blobHash, 0);
+                        }
+                    }
+                    previous = content;
+                    previousHash = content == null ? null : blobHash;
+                }
+            }
+            for (String blobHash : blobs) {
+                if (!writer.contains(blobHash)) {
+                    writeFull(writer, blobHash);
+                }
+            }
+            newPack = writer.finish();
+            statistics.add(BLOBS_PACKED, writer.getObjectCount());
+            statistics.add(DELTAS_PACKED, writer.getDeltaCount());
+        } catch (IOException exception) {
+            throw new GitException("Can't write pack");
+        }
+        close();
+        for (PackFile pack : oldPacks) {
+            if (!pack.getPath().equals(newPack)) {
+                deletePack(pack.getPath());
+            }
+        }
+        for (String blobHash : listLooseBlobs()) {
+            deleteLooseBlob(blobHash);
+        }
+    }
+
+    public synchronized void close() {
+        if (packs == null) {
+            return;
+        }
+        for (PackFile pack : packs) {
+            try {
+                pack.close();
+            } catch (IOException ignored) {
+            }
+        }
+        packs = null;
+    }
+
+    private void writeFull(PackWriter writer, String blobHash) throws GitException {
+        try (InputStream content = open(blobHash)) {
+            writer.writeFull(blobHash, content);
+        } catch (IOException exception) {
+            throw new GitException("Can't read blob " + blobHash);
+        }
+    }
+
+    // content of the blob or null if it is too big to be a delta base
+    private byte[] readLimited(String blobHash) throws GitException {
+        try (InputStream content = open(blobHash)) {
+            byte[] bytes = content.readNBytes(MAX_DELTA_BLOB_SIZE + 1);
+            return bytes.length > MAX_DELTA_BLOB_SIZE ? null : bytes;
+        } catch (IOException exception) {
+            throw new GitException("Can't read blob " + blobHash);
+        }
+    }
+
+    private PackFile findPack(String blobHash) throws GitException {
+        for (PackFile pack : getPacks()) {
+            if (pack.contains(blobHash)) {
+                return pack;
+            }
+        }
+        return null;
+    }
+
+    private synchronized List<PackFile> getPacks() throws GitException {
+        if (packs != null) {
+            return packs;
+        }
+        List<PackFile> openedPacks = new ArrayList<>();
+        if (Files.isDirectory(packsDirectory)) {
+            List<Path> indexFiles;
+            try (Stream<Path> files = Files.list(packsDirectory)) {
+                indexFiles = files.filter(file -> file.getFileName().toString().endsWith(GitConstants.PACK_INDEX_EXTENSION))
+                        .sorted()
+                        .collect(Collectors.toList());
+            } catch (IOException exception) {
+                throw new GitException("Can't list packs");
+            }
+            for (Path indexFile : indexFiles) {
+                String indexName = indexFile.getFileName().toString();
+                String packName = indexName.substring(0, indexName.length() - GitConstants.PACK_INDEX_EXTENSION.length());
+                openedPacks.add(PackFile.open(packsDirectory.resolve(packName + GitConstants.PACK_EXTENSION), indexFile));
+            }
+        }
+        packs = openedPacks;
+        return packs;
+    }
+
+    private void deletePack(Path packFile) throws GitException {
+        String packName = packFile.getFileName().toString();
+        packName = packName.substring(0, packName.length() - GitConstants.PACK_EXTENSION.length());
+        try {
+            Files.deleteIfExists(packsDirectory.resolve(packName + GitConstants.PACK_INDEX_EXTENSION));
+            Files.deleteIfExists(packFile);
+        } catch (IOException exception) {
+            throw new GitException("Can't delete pack " + packFile);
+        }
+    }
+}
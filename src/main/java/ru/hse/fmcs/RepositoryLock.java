@@ -0,0 +1,102 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Lock on git/lock held by a command from loading the metainfo until it is written back.
+ * Commands that only read take it shared and run side by side, others take it exclusively.
+ * The lock is polled rather than waited for, so a command gives up after the timeout
+ * (git.lockTimeout milliseconds) instead of hanging behind a stuck process. The operating
+ * system releases it when the process dies, a crashed command never leaves the repository locked
+ */
+public class RepositoryLock implements AutoCloseable {
+    public static final @NotNull String LOCK_WAITS = "Lock waits";
+    public static final @NotNull String LOCK_WAIT_MILLIS = "Lock wait, ms";
+
+    private static final long MAX_POLL_INTERVAL_MILLIS = 50;
+
+    private final FileChannel channel;
+
+    private RepositoryLock(FileChannel lockChannel) {
+        channel = lockChannel;
+    }
+
+    public static RepositoryLock acquire(@NotNull String workingDirectory, boolean shared,
+                                         @NotNull CommandStatistics statistics) throws GitException {
+        Path lockFile = Paths.get(workingDirectory, GitConstants.LOCK_FILE);
+        long timeout = Long.getLong(GitConstants.LOCK_TIMEOUT_PROPERTY, GitConstants.DEFAULT_LOCK_TIMEOUT_MILLIS);
+        // reading outside of a repository fails anyway, there is no need to create git/ for it
+        if (shared && !Files.isDirectory(lockFile.getParent())) {
+            return new RepositoryLock(null);
+        }
+        FileChannel channel = null;
+        try {
+            Files.createDirectories(lockFile.getParent());
+            channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long start = System.nanoTime();
+            long pollInterval = 1;
+            boolean waited = false;
+            while (tryLock(channel, shared) == null) {
+                long waitedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                if (waitedMillis >= timeout) {
+                    throw new GitException("Repository is locked by another command, gave up after " + waitedMillis + " ms");
+                }
+                Thread.sleep(Math.min(pollInterval, timeout - waitedMillis));
+                pollInterval = Math.min(pollInterval * 2, MAX_POLL_INTERVAL_MILLIS);
+                waited = true;
+            }
+            if (waited) {
+                statistics.increment(LOCK_WAITS);
+                statistics.add(LOCK_WAIT_MILLIS, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+            RepositoryLock lock = new RepositoryLock(channel);
+            channel = null;
+            return lock;
+        } catch (IOException exception) {
+            throw new GitException("Can't lock " + lockFile);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new GitException("Interrupted while waiting for " + lockFile);
+        } finally {
+            closeQuietly(channel);
+        }
+    }
+
+    /*
+     * Releases the lock, closing the channel does it
+     */
+    @Override
+    public void close() {
+        closeQuietly(channel);
+    }
+
+    // a lock held by another command of this process is reported as an exception, not as null,
+    // so within one process even shared locks are taken one at a time
+    private static FileLock tryLock(FileChannel channel, boolean shared) throws IOException {
+        try {
+            return channel.tryLock(0, Long.MAX_VALUE, shared);
+        } catch (OverlappingFileLockException exception) {
+            return null;
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package ru.hse.fmcs;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/*
+ * Repository state shared by all steps of one command: metainfo is read at most once
+ * and written back only if the command changed it
+ */
+public class RepositorySession {
+    public static final @NotNull String LOADS = "Repository loads";
+    public static final @NotNull String SAVES = "Repository saves";
+    public static final @NotNull String BLOBS_MIGRATED = "Blobs moved to sharded layout";
+
+    private final String workingDirectory;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final CommandStatistics statistics = new CommandStatistics();
+    private final RepositoryStorage storage;
+    private Repository repository;
+    private GitIndex index;
+    private GitConfig config;
+    private RepositoryBlobStore blobStore;
+    private boolean changed;
+
+    public RepositorySession(String workingDir) {
+        workingDirectory = workingDir;
+        storage = new RepositoryStorage(workingDir, objectMapper, statistics);
+    }
+
+    /*
+     * Whether loading the repository rewrites it in the current format: the single repository
+     * file of old versions or blobs of the flat layout. Such a load needs the exclusive lock
+     * even for a command that only reads
+     */
+    public static boolean needsMigration(@NotNull String workingDirectory) throws GitException {
+        if (Files.exists(Paths.get(workingDirectory, GitConstants.REPO_FILE))
+                && !Files.exists(Paths.get(workingDirectory, GitConstants.HEAD_FILE))) {
+            return true;
+        }
+        return Files.isDirectory(Paths.get(workingDirectory + GitConstants.BLOBS_DIRECTORY))
+                && !GitConfig.SHARDED_LAYOUT.equals(GitConfig.load(workingDirectory).get(GitConfig.BLOB_LAYOUT, null));
+    }
+
+    public String getWorkingDirectory() {
+        return workingDirectory;
+    }
+
+    public CommandStatistics getStatistics() {
+        return statistics;
+    }
+
+    public Repository getRepository() throws GitException {
+        if (repository == null) {
+            repository = initRepositoryFromFiles();
+        }
+        return repository;
+    }
+
+    public GitIndex getIndex() throws GitException {
+        if (index == null) {
+            index = GitIndex.load(workingDirectory, objectMapper, statistics);
+        }
+        return index;
+    }
+
+    public GitConfig getConfig() throws GitException {
+        if (config == null) {
+            config = GitConfig.load(workingDirectory);
+        }
+        return config;
+    }
+
+    public RepositoryBlobStore getBlobStore() throws GitException {
+        if (blobStore == null) {
+            BlobCodec codec = BlobCodecs.forName(getConfig().get(GitConfig.COMPRESSION, BlobCodecs.NONE.getName()));
+            blobStore = new RepositoryBlobStore(Paths.get(workingDirectory + GitConstants.BLOBS_DIRECTORY),
+                    Paths.get(workingDirectory + GitConstants.PACKS_DIRECTORY), codec, statistics);
+            if (!GitConfig.SHARDED_LAYOUT.equals(getConfig().get(GitConfig.BLOB_LAYOUT, null))) {
+                statistics.add(BLOBS_MIGRATED, blobStore.migrateToShardedLayout());
+                getConfig().set(GitConfig.BLOB_LAYOUT, GitConfig.SHARDED_LAYOUT);
+                getConfig().save();
+            }
+        }
+        return blobStore;
+    }
+
+    /*
+     * Fresh repository with only the initial commit, it becomes the repository of this session
+     */
+    public Repository createRepository() throws GitException {
+        repository = storage.create();
+        changed = true;
+        return repository;
+    }
+
+    public void markChanged() {
+        changed = true;
+    }
+
+    public boolean isChanged() {
+        return changed;
+    }
+
+    public void flush() throws GitException {
+        if (changed) {
+            writeRepositoryToFiles();
+            changed = false;
+        }
+        if (index != null) {
+            index.save(objectMapper);
+        }
+    }
+
+    /*
+     * Releases open packs, the session can't be used afterwards
+     */
+    public void close() {
+        if (blobStore != null) {
+            blobStore.close();
+            blobStore = null;
+        }
+    }
+
+    private Repository initRepositoryFromFiles() throws GitException {
+        Repository loadedRepository = storage.load();
+        statistics.increment(LOADS);
+        return loadedRepository;
+    }
+
+    private void writeRepositoryToFiles() throws GitException {
+        storage.save(repository);
+        statistics.increment(SAVES);
+    }
+}
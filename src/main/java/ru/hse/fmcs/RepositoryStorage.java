@@ -0,0 +1,189 @@
+package ru.hse.fmcs;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/*
+ * Persists a repository as small separate files: immutable commits in the commit store,
+ * git/HEAD with either "ref: refs/heads/<branch>" or a commit hash, branches in the ref store,
+ * the staging area in git/staging in the binary form of MetadataCodec, the ancestry of all commits in git/commit-graph and
+ * the commit being merged in git/MERGE_HEAD while a merge waits for conflicts to be resolved.
+ * Saving writes only new commits, changed refs and the files whose content has changed
+ * since they were loaded. Objects are written first, the metainfo files then change together
+ * through the journal
+ */
+public class RepositoryStorage {
+    private static final @NotNull String HEAD_REF_PREFIX = "ref: refs/heads/";
+
+    private final String workingDirectory;
+    private final ObjectMapper objectMapper;
+    private final CommitStore commitStore;
+    private final TreeStore treeStore;
+    private final CommandStatistics commandStatistics;
+    private final RefStore refStore;
+    private final Journal journal;
+    private CommitGraph commitGraph;
+    private String savedHead;
+    private ObjectId savedMergeHead;
+    private byte[] savedStagingArea;
+
+    public RepositoryStorage(@NotNull String workingDir, @NotNull ObjectMapper mapper, @NotNull CommandStatistics statistics) {
+        workingDirectory = workingDir;
+        objectMapper = mapper;
+        commitStore = new CommitStore(Paths.get(workingDir + GitConstants.COMMITS_DIRECTORY), mapper, statistics);
+        treeStore = new TreeStore(Paths.get(workingDir + GitConstants.TREES_DIRECTORY), mapper, statistics);
+        journal = new Journal(Paths.get(workingDir), statistics);
+        refStore = new RefStore(Paths.get(workingDir, GitConstants.REFS_DIRECTORY), Paths.get(workingDir, GitConstants.PACKED_REFS_FILE),
+                journal, statistics);
+        commandStatistics = statistics;
+    }
+
+    public Repository create() throws GitException {
+        return new Repository(workingDirectory, commitStore, treeStore, getCommitGraph(), refStore);
+    }
+
+    public Repository load() throws GitException {
+        journal.recover();
+        Path headFile = Paths.get(workingDirectory, GitConstants.HEAD_FILE);
+        if (!Files.exists(headFile)) {
+            if (Files.exists(Paths.get(workingDirectory, GitConstants.REPO_FILE))) {
+                return migrateRepositoryFile();
+            }
+            throw new GitException("Repository hasn't been initialized yet");
+        }
+        try {
+            savedHead = Files.readString(headFile, StandardCharsets.UTF_8).trim();
+            Path stagingFile = Paths.get(workingDirectory, GitConstants.STAGING_FILE);
+            Repository.StagingArea stagingArea = new Repository.StagingArea();
+            if (Files.exists(stagingFile)) {
+                savedStagingArea = Files.readAllBytes(stagingFile);
+                // older versions kept it as JSON, the next save writes it in the binary form
+                stagingArea = MetadataCodec.isStagingArea(savedStagingArea)
+                        ? MetadataCodec.decodeStagingArea(savedStagingArea)
+                        : objectMapper.readValue(savedStagingArea, Repository.StagingArea.class);
+            }
+            String currentBranch = null;
+            ObjectId headHash;
+            if (savedHead.startsWith(HEAD_REF_PREFIX)) {
+                currentBranch = savedHead.substring(HEAD_REF_PREFIX.length());
+                headHash = refStore.resolve(currentBranch);
+            } else {
+                headHash = parseObjectId(savedHead);
+            }
+            Repository.Commit head = headHash == null ? null : commitStore.read(headHash);
+            if (head == null) {
+                throw new GitException("HEAD points to a missing commit");
+            }
+            Repository repository = new Repository(workingDirectory, commitStore, treeStore, getCommitGraph(), refStore,
+                    stagingArea, head, currentBranch);
+            Path mergeHeadFile = Paths.get(workingDirectory, GitConstants.MERGE_HEAD_FILE);
+            if (Files.exists(mergeHeadFile)) {
+                savedMergeHead = parseObjectId(Files.readString(mergeHeadFile, StandardCharsets.UTF_8));
+                repository.setMergeHead(savedMergeHead);
+            }
+            return repository;
+        } catch (IOException exception) {
+            throw new GitException("Repository hasn't been initialized yet");
+        }
+    }
+
+    public void save(@NotNull Repository repository) throws GitException {
+        // commits go first, so refs never point to a commit that isn't stored
+        for (Repository.Commit commit : repository.getNewCommits()) {
+            commitStore.write(commit);
+        }
+        repository.getNewCommits().clear();
+        repository.getCommitGraph().save();
+        byte[] stagingArea = MetadataCodec.encodeStagingArea(repository.getStagingArea());
+        if (!Arrays.equals(stagingArea, savedStagingArea)) {
+            journal.write(Paths.get(workingDirectory, GitConstants.STAGING_FILE), stagingArea);
+        }
+        repository.getRefs().save();
+        Path mergeHeadFile = Paths.get(workingDirectory, GitConstants.MERGE_HEAD_FILE);
+        if (!Objects.equals(repository.getMergeHead(), savedMergeHead)) {
+            if (repository.getMergeHead() == null) {
+                journal.delete(mergeHeadFile);
+            } else {
+                journal.write(mergeHeadFile, repository.getMergeHead().toString().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        String head = repository.getCurrentBranch() == null
+                ? repository.getHead().getCommitHash().toString()
+                : HEAD_REF_PREFIX + repository.getCurrentBranch();
+        if (!head.equals(savedHead)) {
+            journal.write(Paths.get(workingDirectory, GitConstants.HEAD_FILE), head.getBytes(StandardCharsets.UTF_8));
+        }
+        journal.commit();
+        savedStagingArea = stagingArea;
+        savedMergeHead = repository.getMergeHead();
+        savedHead = head;
+    }
+
+    /*
+     * Converts git/repository of older versions, which kept the whole history in one file,
+     * into separate files. The old file is deleted only after everything else is written
+     */
+    private Repository migrateRepositoryFile() throws GitException {
+        Path repositoryFile = Paths.get(workingDirectory, GitConstants.REPO_FILE);
+        try {
+            JsonNode root = objectMapper.readTree(repositoryFile.toFile());
+            Map<String, JsonNode> commitNodes = new HashMap<>();
+            root.path("commits").fields().forEachRemaining(commit -> commitNodes.put(commit.getKey(), commit.getValue()));
+            JsonNode headNode = root.path("head");
+            if (!headNode.hasNonNull("commitHash")) {
+                throw new GitException("Can't convert " + GitConstants.REPO_FILE + " to the new format");
+            }
+            commitNodes.put(headNode.get("commitHash").asText(), headNode);
+            // HEAD was on master unless there were commits after it, the newest one is the tip
+            String masterTip = headNode.get("commitHash").asText();
+            String nextCommit = headNode.path("nextCommit").asText("");
+            while (!nextCommit.isEmpty() && commitNodes.containsKey(nextCommit)) {
+                masterTip = nextCommit;
+                nextCommit = commitNodes.get(nextCommit).path("nextCommit").asText("");
+            }
+            Repository.StagingArea stagingArea = root.hasNonNull("stagingArea")
+                    ? objectMapper.treeToValue(root.get("stagingArea"), Repository.StagingArea.class)
+                    : new Repository.StagingArea();
+            for (JsonNode commitNode : commitNodes.values()) {
+                commitStore.write(objectMapper.treeToValue(commitNode, Repository.Commit.class));
+            }
+            Repository.Commit head = commitStore.read(parseObjectId(headNode.get("commitHash").asText()));
+            String currentBranch = parseObjectId(masterTip).equals(head.getCommitHash()) ? GitConstants.MASTER : null;
+            refStore.update(GitConstants.MASTER, parseObjectId(masterTip));
+            Repository repository = new Repository(workingDirectory, commitStore, treeStore, getCommitGraph(), refStore,
+                    stagingArea, head, currentBranch);
+            save(repository);
+            Files.delete(repositoryFile);
+            return repository;
+        } catch (IOException exception) {
+            throw new GitException("Can't convert " + GitConstants.REPO_FILE + " to the new format");
+        }
+    }
+
+    private CommitGraph getCommitGraph() throws GitException {
+        if (commitGraph == null) {
+            commitGraph = CommitGraph.open(Paths.get(workingDirectory, GitConstants.COMMIT_GRAPH_FILE),
+                    Paths.get(workingDirectory, GitConstants.COMMIT_GRAPH_INDEX_FILE), commandStatistics);
+        }
+        return commitGraph;
+    }
+
+    private static ObjectId parseObjectId(String content) throws GitException {
+        String hex = content.trim();
+        if (!ObjectId.isValid(hex)) {
+            throw new GitException("Corrupted reference " + hex);
+        }
+        return ObjectId.fromString(hex);
+    }
+}
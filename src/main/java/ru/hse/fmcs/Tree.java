@@ -0,0 +1,38 @@
+package ru.hse.fmcs;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/*
+ * Content of one directory: blob hashes of its files and tree hashes of its subdirectories,
+ * both by name. Entries are sorted, so equal directories always serialize to equal bytes
+ */
+public class Tree {
+    private final SortedMap<String, String> files;
+    private final SortedMap<String, ObjectId> trees;
+
+    public Tree() {
+        files = new TreeMap<>();
+        trees = new TreeMap<>();
+    }
+
+    public Tree(Tree tree) {
+        files = new TreeMap<>(tree.files);
+        trees = new TreeMap<>(tree.trees);
+    }
+
+    public SortedMap<String, String> getFiles() {
+        return files;
+    }
+
+    public SortedMap<String, ObjectId> getTrees() {
+        return trees;
+    }
+
+    @JsonIgnore
+    public boolean isEmpty() {
+        return files.isEmpty() && trees.isEmpty();
+    }
+}
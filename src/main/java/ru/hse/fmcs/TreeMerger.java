@@ -0,0 +1,132 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+
+/*
+ * Three-way merge of trees. A subtree that is the same on both sides or unchanged on one of
+ * them is taken by its hash without being read, so the work depends on how much the sides
+ * diverged and not on the size of the tree. Only files changed differently on both sides are
+ * merged line by line
+ */
+public class TreeMerger {
+    public static final @NotNull String TREES_MERGED = "Trees merged";
+    public static final @NotNull String FILES_MERGED = "Files merged line by line";
+
+    private final TreeStore treeStore;
+    private final BlobStore blobStore;
+    private final CommandStatistics statistics;
+    private final String oursLabel;
+    private final String theirsLabel;
+    private final List<String> conflicts = new ArrayList<>();
+
+    public TreeMerger(@NotNull TreeStore trees, @NotNull BlobStore blobs, @NotNull String ours, @NotNull String theirs,
+                      @NotNull CommandStatistics commandStatistics) {
+        treeStore = trees;
+        blobStore = blobs;
+        oursLabel = ours;
+        theirsLabel = theirs;
+        statistics = commandStatistics;
+    }
+
+    /*
+     * Hash of the merged root tree, conflicting files are in it with conflict markers or,
+     * if they can't be merged, with our version
+     */
+    public ObjectId merge(ObjectId base, @NotNull ObjectId ours, @NotNull ObjectId theirs) throws GitException {
+        ObjectId merged = mergeTrees(base, ours, theirs, "");
+        Collections.sort(conflicts);
+        return merged == null ? treeStore.write(new Tree()) : merged;
+    }
+
+    /*
+     * Paths that couldn't be merged cleanly, sorted
+     */
+    public List<String> getConflicts() {
+        return conflicts;
+    }
+
+    // null stands for a missing tree, an empty merged tree is missing as well
+    private ObjectId mergeTrees(ObjectId base, ObjectId ours, ObjectId theirs, String prefix) throws GitException {
+        if (Objects.equals(ours, theirs) || Objects.equals(base, theirs)) {
+            return ours;
+        }
+        if (Objects.equals(base, ours)) {
+            return theirs;
+        }
+        statistics.increment(TREES_MERGED);
+        Tree baseTree = base == null ? new Tree() : treeStore.read(base);
+        Tree ourTree = ours == null ? new Tree() : treeStore.read(ours);
+        Tree theirTree = theirs == null ? new Tree() : treeStore.read(theirs);
+        Tree merged = new Tree();
+        Set<String> files = new TreeSet<>(baseTree.getFiles().keySet());
+        files.addAll(ourTree.getFiles().keySet());
+        files.addAll(theirTree.getFiles().keySet());
+        for (String file : files) {
+            String mergedFile = mergeFiles(baseTree.getFiles().get(file), ourTree.getFiles().get(file),
+                    theirTree.getFiles().get(file), prefix + file);
+            if (mergedFile != null) {
+                merged.getFiles().put(file, mergedFile);
+            }
+        }
+        Set<String> directories = new TreeSet<>(baseTree.getTrees().keySet());
+        directories.addAll(ourTree.getTrees().keySet());
+        directories.addAll(theirTree.getTrees().keySet());
+        for (String directory : directories) {
+            ObjectId mergedTree = mergeTrees(baseTree.getTrees().get(directory), ourTree.getTrees().get(directory),
+                    theirTree.getTrees().get(directory), prefix + directory + "/");
+            if (mergedTree != null) {
+                merged.getTrees().put(directory, mergedTree);
+            }
+        }
+        // a file on one side and a directory on the other can't both stay, ours wins
+        for (String name : new ArrayList<>(merged.getFiles().keySet())) {
+            if (merged.getTrees().containsKey(name)) {
+                conflicts.add(prefix + name);
+                if (ourTree.getTrees().containsKey(name)) {
+                    merged.getFiles().remove(name);
+                } else {
+                    merged.getTrees().remove(name);
+                }
+            }
+        }
+        return merged.isEmpty() ? null : treeStore.write(merged);
+    }
+
+    private String mergeFiles(String base, String ours, String theirs, String path) throws GitException {
+        if (Objects.equals(ours, theirs) || Objects.equals(base, theirs)) {
+            return ours;
+        }
+        if (Objects.equals(base, ours)) {
+            return theirs;
+        }
+        // changed on one side and deleted on the other, the changed version is kept
+        if (ours == null || theirs == null) {
+            conflicts.add(path);
+            return ours == null ? theirs : ours;
+        }
+        statistics.increment(FILES_MERGED);
+        LineMerger.Result result = LineMerger.merge(base == null ? new byte[0] : read(base), read(ours), read(theirs),
+                oursLabel, theirsLabel);
+        if (result.hasConflict()) {
+            conflicts.add(path);
+        }
+        return blobStore.write(result.getContent());
+    }
+
+    private byte[] read(String blobHash) throws GitException {
+        try (InputStream input = blobStore.open(blobHash)) {
+            return input.readAllBytes();
+        } catch (IOException exception) {
+            throw new GitException("Can't read blob " + blobHash);
+        }
+    }
+}
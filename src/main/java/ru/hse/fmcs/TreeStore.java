@@ -0,0 +1,195 @@
+package ru.hse.fmcs;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+
+/*
+ * Stores trees as immutable files git/trees/ab/cdef... named by the hash of their content.
+ * A new version of the tree is built from the old one, so only the directories on the path
+ * to a changed file are written again and all other subtrees are shared between commits
+ */
+public class TreeStore {
+    public static final @NotNull String TREES_READ = "Trees read";
+    public static final @NotNull String TREES_WRITTEN = "Trees written";
+
+    private static final int SHARD_PREFIX_LENGTH = 2;
+
+    private final Path treesDirectory;
+    private final ObjectMapper objectMapper;
+    private final CommandStatistics statistics;
+    private final Map<ObjectId, Tree> trees = new HashMap<>();
+    private final Map<ObjectId, Map<String, String>> flattenedTrees = new HashMap<>();
+
+    public TreeStore(@NotNull Path treesDir, @NotNull ObjectMapper mapper, @NotNull CommandStatistics commandStatistics) {
+        treesDirectory = treesDir;
+        objectMapper = mapper;
+        statistics = commandStatistics;
+    }
+
+    public Path getTreePath(@NotNull ObjectId treeHash) {
+        String hex = treeHash.toString();
+        return treesDirectory.resolve(hex.substring(0, SHARD_PREFIX_LENGTH)).resolve(hex.substring(SHARD_PREFIX_LENGTH));
+    }
+
+    public Tree read(@NotNull ObjectId treeHash) throws GitException {
+        Tree tree = trees.get(treeHash);
+        if (tree != null) {
+            return tree;
+        }
+        try {
+            tree = objectMapper.readValue(getTreePath(treeHash).toFile(), Tree.class);
+        } catch (IOException exception) {
+            throw new GitException("Can't read tree " + treeHash);
+        }
+        statistics.increment(TREES_READ);
+        trees.put(treeHash, tree);
+        return tree;
+    }
+
+    /*
+     * Stores the tree unless a tree with the same content is already stored and returns its hash
+     */
+    public ObjectId write(@NotNull Tree tree) throws GitException {
+        try {
+            byte[] content = objectMapper.writeValueAsBytes(tree);
+            ObjectId treeHash = ObjectId.sha256(content);
+            Path treeFile = getTreePath(treeHash);
+            if (!trees.containsKey(treeHash) && !Files.exists(treeFile)) {
+                GitFiles.writeAtomically(treeFile, content);
+                statistics.increment(TREES_WRITTEN);
+            }
+            trees.put(treeHash, tree);
+            return treeHash;
+        } catch (IOException exception) {
+            throw new GitException("Can't write tree");
+        }
+    }
+
+    /*
+     * Applies changes to the tree and returns the hash of the new root. Keys of changes are file
+     * paths separated by '/', a null value deletes the file. Directories left empty disappear
+     */
+    public ObjectId update(ObjectId rootHash, @NotNull Map<String, String> changes) throws GitException {
+        Tree root = rootHash == null ? new Tree() : read(rootHash);
+        Tree newRoot = update(root, changes);
+        return write(newRoot);
+    }
+
+    private Tree update(Tree base, Map<String, String> changes) throws GitException {
+        Tree tree = new Tree(base);
+        Map<String, Map<String, String>> changesByDirectory = new TreeMap<>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            String path = change.getKey();
+            int separator = path.indexOf('/');
+            if (separator < 0) {
+                if (change.getValue() == null) {
+                    tree.getFiles().remove(path);
+                } else {
+                    tree.getTrees().remove(path);
+                    tree.getFiles().put(path, change.getValue());
+                }
+            } else {
+                changesByDirectory.computeIfAbsent(path.substring(0, separator), directory -> new HashMap<>())
+                        .put(path.substring(separator + 1), change.getValue());
+            }
+        }
+        for (Map.Entry<String, Map<String, String>> directoryChanges : changesByDirectory.entrySet()) {
+            String directory = directoryChanges.getKey();
+            ObjectId subtreeHash = tree.getTrees().get(directory);
+            Tree subtree = update(subtreeHash == null ? new Tree() : read(subtreeHash), directoryChanges.getValue());
+            if (subtree.isEmpty()) {
+                tree.getTrees().remove(directory);
+            } else {
+                tree.getFiles().remove(directory);
+                tree.getTrees().put(directory, write(subtree));
+            }
+        }
+        return tree;
+    }
+
+    /*
+     * Blob hash of the file in the tree or null if the tree doesn't contain it
+     */
+    public String find(@NotNull ObjectId rootHash, @NotNull String filePath) throws GitException {
+        Tree tree = read(rootHash);
+        int start = 0;
+        int separator;
+        while ((separator = filePath.indexOf('/', start)) >= 0) {
+            ObjectId subtreeHash = tree.getTrees().get(filePath.substring(start, separator));
+            if (subtreeHash == null) {
+                return null;
+            }
+            tree = read(subtreeHash);
+            start = separator + 1;
+        }
+        return tree.getFiles().get(filePath.substring(start));
+    }
+
+    /*
+     * Files that differ between two trees: new blob hash by path, null for files missing in
+     * the new tree. Subtrees with equal hashes are skipped without being read
+     */
+    public Map<String, String> diff(@NotNull ObjectId oldRootHash, @NotNull ObjectId newRootHash) throws GitException {
+        Map<String, String> changes = new HashMap<>();
+        diff(oldRootHash, newRootHash, "", changes);
+        return changes;
+    }
+
+    private void diff(ObjectId oldHash, ObjectId newHash, String prefix, Map<String, String> changes) throws GitException {
+        if (Objects.equals(oldHash, newHash)) {
+            return;
+        }
+        Tree oldTree = oldHash == null ? new Tree() : read(oldHash);
+        Tree newTree = newHash == null ? new Tree() : read(newHash);
+        for (Map.Entry<String, String> file : oldTree.getFiles().entrySet()) {
+            if (!newTree.getFiles().containsKey(file.getKey())) {
+                changes.put(prefix + file.getKey(), null);
+            }
+        }
+        for (Map.Entry<String, String> file : newTree.getFiles().entrySet()) {
+            if (!file.getValue().equals(oldTree.getFiles().get(file.getKey()))) {
+                changes.put(prefix + file.getKey(), file.getValue());
+            }
+        }
+        Set<String> directories = new HashSet<>(oldTree.getTrees().keySet());
+        directories.addAll(newTree.getTrees().keySet());
+        for (String directory : directories) {
+            diff(oldTree.getTrees().get(directory), newTree.getTrees().get(directory), prefix + directory + "/", changes);
+        }
+    }
+
+    /*
+     * Every file of the tree by its full path
+     */
+    public Map<String, String> flatten(@NotNull ObjectId treeHash) throws GitException {
+        Map<String, String> files = flattenedTrees.get(treeHash);
+        if (files == null) {
+            files = new HashMap<>();
+            flatten(treeHash, "", files);
+            files = Collections.unmodifiableMap(files);
+            flattenedTrees.put(treeHash, files);
+        }
+        return files;
+    }
+
+    private void flatten(ObjectId treeHash, String prefix, Map<String, String> files) throws GitException {
+        Tree tree = read(treeHash);
+        for (Map.Entry<String, String> file : tree.getFiles().entrySet()) {
+            files.put(prefix + file.getKey(), file.getValue());
+        }
+        for (Map.Entry<String, ObjectId> subtree : tree.getTrees().entrySet()) {
+            flatten(subtree.getValue(), prefix + subtree.getKey() + "/", files);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package ru.hse.fmcs;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/*
+ * Unsigned LEB128 numbers: 7 bits per byte, the high bit marks that more bytes follow
+ */
+public final class Varints {
+    private Varints() {}
+
+    public static void write(ByteArrayOutputStream outputStream, long value) {
+        while ((value & ~0x7FL) != 0) {
+            outputStream.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        outputStream.write((int) value);
+    }
+
+    public static long read(ByteBuffer buffer) {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            byte current = buffer.get();
+            value |= (long) (current & 0x7F) << shift;
+            if ((current & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+            if (shift > 63) {
+                throw new IllegalArgumentException("Malformed varint");
+            }
+        }
+    }
+}
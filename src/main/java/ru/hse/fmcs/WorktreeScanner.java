@@ -0,0 +1,114 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Predicate;
+
+/*
+ * Walks the working tree in parallel: every directory is listed by its own fork-join task.
+ * The git directory and ignored paths are pruned before anything below them is read.
+ * Files are handed to the consumer on the calling thread in sorted depth-first order
+ * as soon as the directories before them are listed, so nothing is collected up front.
+ * Directories that can't be listed and entries that vanish while they are read are skipped
+ */
+public class WorktreeScanner {
+    public static final @NotNull String DIRECTORIES_SCANNED = "Directories scanned";
+
+    private final Path root;
+    private final IgnoreFilter ignoreFilter;
+    private final CommandStatistics statistics;
+
+    public WorktreeScanner(@NotNull String workingDirectory, @NotNull IgnoreFilter filter, @NotNull CommandStatistics commandStatistics) {
+        root = Paths.get(workingDirectory).toAbsolutePath().normalize();
+        ignoreFilter = filter;
+        statistics = commandStatistics;
+    }
+
+    /*
+     * Passes every file that isn't ignored and matches the predicate to the consumer.
+     * The predicate is called from worker threads
+     */
+    public void scan(@NotNull Predicate<String> fileFilter, @NotNull FileConsumer consumer) throws GitException {
+        DirectoryTask rootTask = new DirectoryTask(root, "", fileFilter);
+        ForkJoinPool.commonPool().execute(rootTask);
+        emit(rootTask, consumer);
+    }
+
+    private void emit(DirectoryTask task, FileConsumer consumer) throws GitException {
+        for (Object entry : task.join()) {
+            if (entry instanceof DirectoryTask) {
+                emit((DirectoryTask) entry, consumer);
+            } else {
+                consumer.accept((String) entry);
+            }
+        }
+    }
+
+    public interface IgnoreFilter {
+        boolean isIgnored(@NotNull String path, boolean isDirectory);
+    }
+
+    public interface FileConsumer {
+        void accept(@NotNull String path) throws GitException;
+    }
+
+    // lists the directory into file paths and tasks of subdirectories, sorted by name
+    private class DirectoryTask extends RecursiveTask<List<Object>> {
+        private static final long serialVersionUID = 1L;
+
+        private final Path directory;
+        private final String relativePath;
+        private final Predicate<String> fileFilter;
+
+        private DirectoryTask(Path taskDirectory, String taskRelativePath, Predicate<String> filter) {
+            directory = taskDirectory;
+            relativePath = taskRelativePath;
+            fileFilter = filter;
+        }
+
+        @Override
+        protected List<Object> compute() {
+            statistics.increment(DIRECTORIES_SCANNED);
+            TreeMap<String, Object> entries = new TreeMap<>();
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(directory)) {
+                for (Path child : children) {
+                    String name = child.getFileName().toString();
+                    String path = relativePath.isEmpty() ? name : relativePath + "/" + name;
+                    BasicFileAttributes attributes;
+                    try {
+                        attributes = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException exception) {
+                        continue;
+                    }
+                    if (attributes.isDirectory()) {
+                        if ((relativePath.isEmpty() && name.equals("git")) || ignoreFilter.isIgnored(path, true)) {
+                            continue;
+                        }
+                        DirectoryTask task = new DirectoryTask(child, path, fileFilter);
+                        task.fork();
+                        entries.put(name, task);
+                    } else if (attributes.isRegularFile() && !ignoreFilter.isIgnored(path, false) && fileFilter.test(path)) {
+                        entries.put(name, path);
+                    }
+                }
+            } catch (IOException | DirectoryIteratorException exception) {
+                // like File.listFiles returning null, an unreadable directory has no files to report
+                return List.of();
+            }
+            return new ArrayList<>(entries.values());
+        }
+    }
+}
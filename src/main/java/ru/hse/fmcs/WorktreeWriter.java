@@ -0,0 +1,282 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Applies a set of file changes to the working tree. Blobs are first restored into a staging
+ * directory by a pool of workers; only if all of them succeed, deletions are done, missing
+ * directories are created parents first and the staged files are renamed into place.
+ * Deleted and replaced files are moved aside into a backup directory rather than removed,
+ * so if any step fails, everything done so far is undone and the working tree is left as it was.
+ * If even that fails, the backup directory is kept and named in the error
+ */
+public class WorktreeWriter {
+    public static final @NotNull String FILES_CHECKED_OUT = "Files checked out";
+    public static final @NotNull String BYTES_CHECKED_OUT = "Bytes checked out";
+    public static final @NotNull String FILES_REMOVED = "Files removed";
+    public static final @NotNull String FILES_PER_SECOND = "Checkout files per second";
+    public static final @NotNull String BYTES_PER_SECOND = "Checkout bytes per second";
+
+    private static final @NotNull String STAGING_DIRECTORY = "git/checkout";
+    private static final @NotNull String BACKUP_DIRECTORY_PARENT = "git";
+    private static final @NotNull String BACKUP_DIRECTORY_PREFIX = "checkout-backup";
+
+    private final Path root;
+    private final BlobStore blobStore;
+    private final int workers;
+    private final CommandStatistics statistics;
+
+    public WorktreeWriter(@NotNull String workingDirectory, @NotNull BlobStore store, int workerCount,
+                          @NotNull CommandStatistics commandStatistics) {
+        root = Path.of(workingDirectory).toAbsolutePath().normalize();
+        blobStore = store;
+        workers = Math.max(1, workerCount);
+        statistics = commandStatistics;
+    }
+
+    /*
+     * Keys are paths relative to the working directory, values are blob hashes or null for files to delete
+     */
+    public void apply(@NotNull Map<String, String> changes) throws GitException {
+        long start = System.nanoTime();
+        List<String> filesToWrite = new ArrayList<>();
+        List<String> filesToDelete = new ArrayList<>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            (change.getValue() == null ? filesToDelete : filesToWrite).add(change.getKey());
+        }
+        Path stagingDirectory = root.resolve(STAGING_DIRECTORY);
+        UndoLog undoLog = new UndoLog(root.resolve(BACKUP_DIRECTORY_PARENT));
+        try {
+            List<Path> stagedFiles = restoreAll(filesToWrite, changes, stagingDirectory);
+            long bytes = 0;
+            try {
+                for (String filePath : filesToDelete) {
+                    delete(filePath, undoLog);
+                }
+                createDirectories(filesToWrite, undoLog);
+                for (int i = 0; i < filesToWrite.size(); i++) {
+                    Path target = resolve(filesToWrite.get(i));
+                    try {
+                        bytes += Files.size(stagedFiles.get(i));
+                        undoLog.moveAside(target);
+                        // a directory, even an empty one, is never replaced by a file
+                        if (Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+                            throw new GitException("Can't write file " + filesToWrite.get(i) + ", a directory is in the way");
+                        }
+                        Files.move(stagedFiles.get(i), target, StandardCopyOption.ATOMIC_MOVE);
+                        undoLog.add(() -> Files.delete(target));
+                    } catch (IOException exception) {
+                        throw new GitException("Can't write file " + filesToWrite.get(i));
+                    }
+                }
+            } catch (GitException | RuntimeException exception) {
+                throw undoLog.rollBack(exception);
+            }
+            statistics.add(FILES_CHECKED_OUT, filesToWrite.size());
+            statistics.add(BYTES_CHECKED_OUT, bytes);
+            long elapsed = Math.max(1, System.nanoTime() - start);
+            statistics.add(FILES_PER_SECOND, filesToWrite.size() * TimeUnit.SECONDS.toNanos(1) / elapsed);
+            statistics.add(BYTES_PER_SECOND, (long) (bytes * (double) TimeUnit.SECONDS.toNanos(1) / elapsed));
+        } finally {
+            deleteRecursively(stagingDirectory);
+            // after a failed rollback the backups are the only copy of what was replaced
+            if (undoLog.canDropBackups()) {
+                deleteRecursively(undoLog.backupDirectory);
+            }
+        }
+    }
+
+    // restores the i-th file into the i-th staged file, all failures are reported together
+    private List<Path> restoreAll(List<String> filesToWrite, Map<String, String> changes, Path stagingDirectory) throws GitException {
+        List<Path> stagedFiles = new ArrayList<>();
+        for (int i = 0; i < filesToWrite.size(); i++) {
+            stagedFiles.add(stagingDirectory.resolve(Integer.toString(i)));
+        }
+        if (filesToWrite.isEmpty()) {
+            return stagedFiles;
+        }
+        try {
+            Files.createDirectories(stagingDirectory);
+        } catch (IOException exception) {
+            throw new GitException("Can't create directory " + stagingDirectory);
+        }
+        List<String> failures = new ArrayList<>();
+        int threads = Math.min(workers, filesToWrite.size());
+        if (threads == 1) {
+            for (int i = 0; i < filesToWrite.size(); i++) {
+                try {
+                    blobStore.restore(changes.get(filesToWrite.get(i)), stagedFiles.get(i));
+                } catch (GitException exception) {
+                    failures.add(exception.getMessage());
+                }
+            }
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<?>> restores = new ArrayList<>();
+                for (int i = 0; i < filesToWrite.size(); i++) {
+                    String blobHash = changes.get(filesToWrite.get(i));
+                    Path stagedFile = stagedFiles.get(i);
+                    restores.add(executor.submit(() -> {
+                        blobStore.restore(blobHash, stagedFile);
+                        return null;
+                    }));
+                }
+                for (Future<?> restore : restores) {
+                    try {
+                        restore.get();
+                    } catch (ExecutionException exception) {
+                        failures.add(exception.getCause().getMessage());
+                    } catch (InterruptedException exception) {
+                        Thread.currentThread().interrupt();
+                        throw new GitException("Checkout was interrupted");
+                    }
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+        if (!failures.isEmpty()) {
+            throw new GitException("Checkout failed, working tree is unchanged:\n" + String.join("\n", failures));
+        }
+        return stagedFiles;
+    }
+
+    // parents are created before their children, so every directory is created once
+    private void createDirectories(List<String> files, UndoLog undoLog) throws GitException {
+        TreeSet<Path> directories = new TreeSet<>(Comparator.comparingInt(Path::getNameCount).thenComparing(Comparator.naturalOrder()));
+        for (String filePath : files) {
+            for (Path directory = resolve(filePath).getParent(); directory != null && !directory.equals(root); directory = directory.getParent()) {
+                directories.add(directory);
+            }
+        }
+        for (Path directory : directories) {
+            try {
+                if (!Files.isDirectory(directory)) {
+                    Files.createDirectory(directory);
+                    undoLog.add(() -> Files.delete(directory));
+                }
+            } catch (IOException exception) {
+                throw new GitException("Can't create directory " + directory);
+            }
+        }
+    }
+
+    // deletes the file and the directories it leaves empty
+    private void delete(String filePath, UndoLog undoLog) throws GitException {
+        Path file = resolve(filePath);
+        try {
+            if (undoLog.moveAside(file)) {
+                statistics.increment(FILES_REMOVED);
+            }
+            for (Path directory = file.getParent(); directory != null && !directory.equals(root); directory = directory.getParent()) {
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                    if (entries.iterator().hasNext()) {
+                        break;
+                    }
+                }
+                Files.delete(directory);
+                Path deletedDirectory = directory;
+                undoLog.add(() -> Files.createDirectory(deletedDirectory));
+            }
+        } catch (NoSuchFileException ignored) {
+        } catch (IOException exception) {
+            throw new GitException("Can't delete file " + filePath);
+        }
+    }
+
+    private interface UndoStep {
+        void run() throws IOException;
+    }
+
+    // changes made to the working tree so far, undone in reverse order when a later one fails
+    private static class UndoLog {
+        private final Path backupParent;
+        private final Deque<UndoStep> steps = new ArrayDeque<>();
+        private Path backupDirectory;
+        private int backups;
+        private boolean restoreFailed;
+
+        private UndoLog(Path parent) {
+            backupParent = parent;
+        }
+
+        private void add(UndoStep step) {
+            steps.push(step);
+        }
+
+        // moves a file out of the way until the change is done, directories are never moved
+        private boolean moveAside(Path file) throws IOException {
+            if (!Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS) && !Files.isSymbolicLink(file)) {
+                return false;
+            }
+            if (backupDirectory == null) {
+                backupDirectory = Files.createTempDirectory(backupParent, BACKUP_DIRECTORY_PREFIX);
+            }
+            Path backup = backupDirectory.resolve("backup-" + backups++);
+            Files.move(file, backup, StandardCopyOption.ATOMIC_MOVE);
+            add(() -> Files.move(backup, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING));
+            return true;
+        }
+
+        // false after a failed rollback, when nothing else holds the replaced files
+        private boolean canDropBackups() {
+            return backupDirectory != null && !restoreFailed;
+        }
+
+        private GitException rollBack(Exception failure) {
+            List<String> failures = new ArrayList<>();
+            while (!steps.isEmpty()) {
+                try {
+                    steps.pop().run();
+                } catch (IOException | RuntimeException exception) {
+                    failures.add(exception.toString());
+                }
+            }
+            String message = failure instanceof GitException ? failure.getMessage() : "Checkout failed: " + failure;
+            if (!failures.isEmpty()) {
+                restoreFailed = true;
+                return new GitException(message + ", working tree couldn't be restored, replaced and deleted files are kept in "
+                        + backupDirectory + ":\n" + String.join("\n", failures), failure);
+            }
+            return new GitException(message + ", working tree is unchanged", failure);
+        }
+    }
+
+    private Path resolve(String filePath) {
+        return root.resolve(filePath).normalize();
+    }
+
+    private static void deleteRecursively(Path directory) {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                Files.deleteIfExists(entry);
+            }
+            Files.deleteIfExists(directory);
+        } catch (IOException ignored) {
+        }
+    }
+}
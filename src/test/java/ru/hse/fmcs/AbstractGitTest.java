@@ -77,6 +77,10 @@ public abstract class AbstractGitTest {
         }
     }
 
+    protected GitCli getCli() {
+        return cli;
+    }
+
     private void runCommand(@NotNull String command, String... args) throws GitException {
         List<String> arguments = Arrays.asList(args);
         String input = (command + " " + String.join(" ", arguments)).trim();
@@ -166,6 +170,11 @@ public abstract class AbstractGitTest {
         runCommand(GitConstants.LOG);
     }
 
+    // git log -n maxCount
+    protected void log(int maxCount) throws GitException {
+        runCommand(GitConstants.LOG, "-n", String.valueOf(maxCount));
+    }
+
     // git branch-create branch
     protected void createBranch(@NotNull String branch) throws GitException {
         runCommand(GitConstants.BRANCH_CREATE, branch);
@@ -186,6 +195,11 @@ public abstract class AbstractGitTest {
         runCommand(GitConstants.SHOW_BRANCHES);
     }
 
+    // git gc
+    protected void gc() throws GitException {
+        runCommand(GitConstants.GC);
+    }
+
     // git merge branch
     protected void merge(@NotNull String branch) throws GitException {
         runCommand(GitConstants.MERGE, branch);
@@ -0,0 +1,90 @@
+package ru.hse.fmcs;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class BlobIndexTest {
+    private Path indexFile;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        indexFile = Files.createTempFile("blobs", ".idx");
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(indexFile);
+    }
+
+    @Test
+    public void testHexAndRawLookupsAgree() throws Exception {
+        Map<String, Long> offsets = new HashMap<>();
+        for (long i = 0; i < 1000; i++) {
+            offsets.put(Hashing.sha256().hashLong(i).toString(), i * 100);
+        }
+        BlobIndex.write(indexFile, offsets);
+        BlobIndex index = BlobIndex.open(indexFile);
+
+        assertEquals(offsets.size(), index.size());
+        for (Map.Entry<String, Long> entry : offsets.entrySet()) {
+            long offset = entry.getValue();
+            assertEquals(offset, index.find(entry.getKey()));
+            assertEquals(offset, index.find(HashCode.fromString(entry.getKey()).asBytes()));
+        }
+        for (long i = 1000; i < 1100; i++) {
+            assertEquals(-1L, index.find(Hashing.sha256().hashLong(i).toString()));
+        }
+    }
+
+    @Test
+    public void testFanOutBoundaries() throws Exception {
+        // the first and last buckets, the sign change of the first byte, and hashes differing only in the last byte
+        Map<String, Long> offsets = new HashMap<>();
+        offsets.put(hash("00", "00"), 1L);
+        offsets.put(hash("00", "01"), 2L);
+        offsets.put(hash("7f", "ff"), 3L);
+        offsets.put(hash("80", "00"), 4L);
+        offsets.put(hash("ff", "fe"), 5L);
+        offsets.put(hash("ff", "ff"), 6L);
+        BlobIndex.write(indexFile, offsets);
+        BlobIndex index = BlobIndex.open(indexFile);
+
+        for (Map.Entry<String, Long> entry : offsets.entrySet()) {
+            long offset = entry.getValue();
+            assertEquals(offset, index.find(entry.getKey()));
+        }
+        assertEquals(hash("00", "00"), index.getHash(0));
+        assertEquals(hash("ff", "ff"), index.getHash(index.size() - 1));
+        // empty buckets, including the ones next to full buckets
+        assertEquals(-1L, index.find(hash("01", "00")));
+        assertEquals(-1L, index.find(hash("7e", "ff")));
+        assertEquals(-1L, index.find(hash("81", "00")));
+        assertEquals(-1L, index.find(hash("fe", "ff")));
+        assertEquals(-1L, index.find(hash("ff", "fd")));
+    }
+
+    @Test
+    public void testEmptyIndex() throws Exception {
+        BlobIndex.write(indexFile, Map.of());
+        BlobIndex index = BlobIndex.open(indexFile);
+        assertEquals(0, index.size());
+        assertEquals(-1L, index.find(hash("00", "00")));
+        assertEquals(-1L, index.find(hash("ff", "ff")));
+    }
+
+    // hash with the given first and last byte and zeros between them
+    private static String hash(String firstByte, String lastByte) {
+        return firstByte + "0".repeat(2 * BlobIndex.HASH_SIZE - 4) + lastByte;
+    }
+}
@@ -0,0 +1,57 @@
+package ru.hse.fmcs;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class GitIndexTest {
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private Path root;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("index");
+        Files.createDirectories(root.resolve("git"));
+        Files.writeString(root.resolve("file.txt"), "aaa");
+        setModificationTime(root.resolve("file.txt"), Instant.now().minusSeconds(60));
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(root.toFile());
+    }
+
+    @Test
+    public void testEntryIsTrustedAfterSave() throws Exception {
+        CommandStatistics statistics = new CommandStatistics();
+        GitIndex index = GitIndex.load(root.toString(), objectMapper, statistics);
+        index.getFileHash("file.txt", file -> "hash");
+        index.save(objectMapper);
+        // the file is now newer than the index, so its entry is racily clean
+        setModificationTime(root.resolve(GitConstants.INDEX_FILE), Instant.now().minusSeconds(120));
+
+        // the daemon keeps one index across commands
+        index = GitIndex.load(root.toString(), objectMapper, statistics);
+        index.getFileHash("file.txt", file -> "hash");
+        index.getFileHash("file.txt", file -> "hash");
+        assertEquals(3, statistics.get(GitIndex.FILES_HASHED));
+
+        index.save(objectMapper);
+        index.getFileHash("file.txt", file -> "hash");
+        assertEquals(3, statistics.get(GitIndex.FILES_HASHED));
+    }
+
+    private static void setModificationTime(Path file, Instant time) throws IOException {
+        Files.setLastModifiedTime(file, FileTime.from(time));
+    }
+}
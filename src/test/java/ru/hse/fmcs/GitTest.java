@@ -1,8 +1,34 @@
 package ru.hse.fmcs;
 
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.io.FileUtils;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
 /*
  * Т.к. в коммитах при каждом новом запуске получаются разные хеши и
  *   разное время отправки, то в expected логах на их местах используются
@@ -101,6 +127,26 @@ public class GitTest extends AbstractGitTest {
         check("reset.txt");
     }
 
+    @Test
+    public void testResetFromDetachedHead() throws Exception {
+        String file = "file.txt";
+        createFileAndCommit(file, "aaa");
+        createFileAndCommit(file, "bbb");
+        createFileAndCommit(file, "ccc");
+
+        checkoutRevision(1);
+        reset(1);
+        fileContent(file);
+        status();
+
+        createFile(file, "ddd");
+        add(file);
+        commit("Commit after reset");
+        log();
+
+        check("resetFromDetachedHead.txt");
+    }
+
     @Test
     public void testCheckout() throws Exception {
         String file = "file.txt";
@@ -163,5 +209,526 @@ public class GitTest extends AbstractGitTest {
 
         check("branchRemove.txt");
     }
-}
 
+    @Test
+    public void testPackedBranches() throws Exception {
+        createFileAndCommit("file1.txt", "aaa");
+        createBranch("feature/one");
+        createFileAndCommit("file2.txt", "bbb");
+        createBranch("feature/two");
+        checkoutBranch("master");
+        gc();
+        removeBranch("feature/one");
+        createBranch("develop");
+        showBranches();
+        checkoutBranch("feature/two");
+        status();
+        log();
+
+        check("packedBranches.txt");
+    }
+
+    @Test
+    public void testMerge() throws Exception {
+        createFileAndCommit("file.txt", "line1\nline2\nline3\n");
+        createBranch("develop");
+        createFileAndCommit("file.txt", "line1\nline2\nline3 develop\n");
+        createFileAndCommit("develop.txt", "ddd");
+        checkoutBranch("master");
+        createFileAndCommit("file.txt", "line1 master\nline2\nline3\n");
+        merge("develop");
+        fileContent("file.txt");
+        fileContent("develop.txt");
+        status();
+        log();
+
+        check("merge.txt");
+    }
+
+    @Test
+    public void testMergeConflict() throws Exception {
+        createFileAndCommit("file.txt", "line1\nline2\nline3\n");
+        createBranch("develop");
+        createFileAndCommit("file.txt", "line1\nline2 develop\nline3\n");
+        createFileAndCommit("develop.txt", "ddd");
+        checkoutBranch("master");
+        createFileAndCommit("file.txt", "line1\nline2 master\nline3\n");
+        merge("develop");
+        fileContent("file.txt");
+        status();
+        createFile("file.txt", "line1\nline2 merged\nline3\n");
+        add("file.txt");
+        commit("Merge develop");
+        merge("develop");
+        log();
+
+        check("mergeConflict.txt");
+    }
+
+    @Test
+    public void testStatusLoadsRepositoryOnce() throws Exception {
+        createFile("dir/file1.txt", "aaa");
+        createFile("dir/inner/file2.txt", "bbb");
+        add("dir/file1.txt");
+        status();
+
+        CommandStatistics statistics = ((GitCliImpl) getCli()).getLastCommandStatistics();
+        assertEquals(1, statistics.get(RepositorySession.LOADS));
+        assertEquals(0, statistics.get(RepositorySession.SAVES));
+    }
+
+    @Test
+    public void testStatusHashesOnlyChangedFiles() throws Exception {
+        createFile("file1.txt", "aaa");
+        createFile("file2.txt", "bbb");
+        add("file1.txt", "file2.txt");
+        commit("First commit");
+        // files written in the same timestamp tick as the index aren't trusted, so they are made older
+        setModificationTime("file1.txt", Instant.now().minusSeconds(60));
+        setModificationTime("file2.txt", Instant.now().minusSeconds(60));
+        status();
+        status();
+
+        CommandStatistics statistics = ((GitCliImpl) getCli()).getLastCommandStatistics();
+        assertEquals(0, statistics.get(GitIndex.FILES_HASHED));
+
+        createFile("file1.txt", "ccc");
+        setModificationTime("file1.txt", Instant.now().minusSeconds(30));
+        status();
+        statistics = ((GitCliImpl) getCli()).getLastCommandStatistics();
+        assertEquals(1, statistics.get(GitIndex.FILES_HASHED));
+    }
+
+    @Test
+    public void testRacilyCleanFileIsHashedAgain() throws Exception {
+        createFile("file.txt", "aaa");
+        add("file.txt");
+        commit("First commit");
+        // modified after the index is written, the stat data of the index entry stays the same
+        setModificationTime("file.txt", Instant.now().plusSeconds(60));
+        status();
+        status();
+
+        CommandStatistics statistics = ((GitCliImpl) getCli()).getLastCommandStatistics();
+        assertEquals(1, statistics.get(GitIndex.FILES_HASHED));
+    }
+
+    @Test
+    public void testStatusScansUntrackedFiles() throws Exception {
+        GitConfig config = GitConfig.load(new File("./playground/").getAbsolutePath());
+        config.set(GitConfig.STATUS_IGNORE, "node_modules/");
+        config.save();
+        createFile("b/z.txt", "aaa");
+        createFile("top.txt", "bbb");
+        createFile("a/c/d.txt", "ccc");
+        createFile("a/b.txt", "ddd");
+        createFile("node_modules/lib/index.js", "eee");
+        status();
+
+        // the root, a, a/c and b, git/ and the ignored directory are never listed
+        CommandStatistics statistics = ((GitCliImpl) getCli()).getLastCommandStatistics();
+        assertEquals(4, statistics.get(WorktreeScanner.DIRECTORIES_SCANNED));
+
+        check("untrackedFiles.txt");
+    }
+
+    @Test
+    public void testAddDeduplicatesBlobs() throws Exception {
+        createFile("file1.txt", "aaa");
+        createFile("dir/file2.txt", "aaa");
+        add("file1.txt", "dir/file2.txt");
+
+        CommandStatistics statistics = ((GitCliImpl) getCli()).getLastCommandStatistics();
+        assertEquals(3, statistics.get(BlobStore.BYTES_WRITTEN));
+        assertEquals(3, statistics.get(BlobStore.BYTES_DEDUPLICATED));
+    }
+
+    @Test
+    public void testLargeFileRoundTrip() throws Exception {
+        // a few times the size of the buffer blobs are streamed through, not a multiple of it
+        byte[] content = new byte[3 * (1 << 20) + 17];
+        new Random(42).nextBytes(content);
+        Files.write(Paths.get("./playground/", "large.bin"), content);
+        add("large.bin");
+        commit("Add large file");
+        deleteFile("large.bin");
+        checkoutFiles("--", "large.bin");
+
+        assertArrayEquals(content, Files.readAllBytes(Paths.get("./playground/", "large.bin")));
+    }
+
+    @Test
+    public void testFlatBlobsAreMovedToShards() throws Exception {
+        createFileAndCommit("file.txt", "aaa");
+        createFile("file.txt", "bbb");
+        add("file.txt");
+        commit("Second commit");
+        // blobs and config as versions before sharding left them
+        Path blobs = Paths.get("./playground/" + GitConstants.BLOBS_DIRECTORY);
+        List<Path> shardedBlobs;
+        try (Stream<Path> files = Files.walk(blobs)) {
+            shardedBlobs = files.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        for (Path blob : shardedBlobs) {
+            Files.move(blob, blobs.resolve(blob.getParent().getFileName().toString() + blob.getFileName()));
+        }
+        for (Path blob : shardedBlobs) {
+            Files.deleteIfExists(blob.getParent());
+        }
+        Path config = Paths.get("./playground/", GitConstants.CONFIG_FILE);
+        Files.writeString(config, Files.readString(config).replace(GitConfig.BLOB_LAYOUT + "=" + GitConfig.SHARDED_LAYOUT, ""));
+        status();
+
+        CommandStatistics statistics = ((GitCliImpl) getCli()).getLastCommandStatistics();
+        assertEquals(shardedBlobs.size(), statistics.get(RepositorySession.BLOBS_MIGRATED));
+        for (Path blob : shardedBlobs) {
+            assertTrue(Files.exists(blob));
+        }
+        assertEquals(GitConfig.SHARDED_LAYOUT, GitConfig.load(new File("./playground/").getAbsolutePath())
+                .get(GitConfig.BLOB_LAYOUT, null));
+        checkoutRevision(1);
+        fileContent("file.txt");
+
+        check("flatBlobs.txt");
+    }
+
+    @Test
+    public void testRepositoryFileIsConverted() throws Exception {
+        // git/ of the first version: the whole history in git/repository and flat blobs
+        File git = new File("./playground/git");
+        FileUtils.deleteDirectory(git);
+        FileUtils.copyDirectory(new File(ClassLoader.getSystemClassLoader().getResource("legacyRepository/git").toURI()), git);
+        createFile("file.txt", "second version");
+        createFile("dir/inner.txt", "nested");
+        log();
+        status();
+        // converted commits keep their flat file lists, reading them builds no trees
+        assertTrue(Files.notExists(Paths.get("./playground" + GitConstants.TREES_DIRECTORY)));
+        checkoutRevision(1);
+        fileContent("file.txt");
+        fileContent("dir/inner.txt");
+        checkoutMaster();
+        fileContent("file.txt");
+
+        assertTrue(Files.exists(Paths.get("./playground/", GitConstants.HEAD_FILE)));
+        assertTrue(Files.notExists(Paths.get("./playground/", GitConstants.REPO_FILE)));
+        check("legacyRepository.txt");
+    }
+
+    @Test
+    public void testAddDirectory() throws Exception {
+        createFile("dir/file1.txt", "aaa");
+        createFile("dir/sub/file2.txt", "bbb");
+        createFile("file3.txt", "ccc");
+        add("dir");
+        status();
+        commit("Add dir");
+        status();
+
+        check("addDirectory.txt");
+    }
+
+    @Test
+    public void testIgnoredFiles() throws Exception {
+        createFile(".gitignore", "# build output\nbuild/\n*.log\n!keep.log\n/src/**/generated\n");
+        createFile("build/out.txt", "aaa");
+        createFile("error.log", "bbb");
+        createFile("keep.log", "ccc");
+        createFile("src/main/generated/file.txt", "ddd");
+        createFile("src/main/file.txt", "eee");
+        status();
+        add("src");
+        status();
+
+        check("ignoredFiles.txt");
+    }
+
+    @Test
+    public void testCommitSharesUnchangedTrees() throws Exception {
+        createFile("a/b/file1.txt", "aaa");
+        createFile("c/d/file2.txt", "bbb");
+        add("a/b/file1.txt", "c/d/file2.txt");
+        commit("First commit");
+
+        createFile("a/b/file1.txt", "ccc");
+        add("a/b/file1.txt");
+        commit("Second commit");
+
+        // only the root, a and a/b are new, the c subtree is shared with the first commit
+        CommandStatistics statistics = ((GitCliImpl) getCli()).getLastCommandStatistics();
+        assertEquals(3, statistics.get(TreeStore.TREES_WRITTEN));
+    }
+
+    @Test
+    public void testCheckoutTouchesOnlyChangedFiles() throws Exception {
+        createFile("file1.txt", "aaa");
+        createFile("dir/file2.txt", "bbb");
+        add("file1.txt", "dir/file2.txt");
+        commit("First commit");
+
+        createFile("file1.txt", "ccc");
+        createFile("file3.txt", "ddd");
+        add("file1.txt", "file3.txt");
+        commit("Second commit");
+        checkoutRevision(1);
+
+        CommandStatistics statistics = ((GitCliImpl) getCli()).getLastCommandStatistics();
+        assertEquals(1, statistics.get(WorktreeWriter.FILES_CHECKED_OUT));
+        assertEquals(1, statistics.get(WorktreeWriter.FILES_REMOVED));
+    }
+
+    @Test
+    public void testFailedCheckoutIsRolledBack() throws Exception {
+        createFile("file.txt", "aaa");
+        createFile("blocked.txt", "bbb");
+        add("file.txt", "blocked.txt");
+        commit("First commit");
+
+        createFile("file.txt", "ccc");
+        createFile("dir/new.txt", "ddd");
+        add("file.txt", "dir/new.txt");
+        deleteFile("blocked.txt");
+        rm("blocked.txt");
+        commit("Second commit");
+        // an untracked directory where checkout has to put a file
+        createFile("blocked.txt/untracked.txt", "eee");
+        assertThrows(GitException.class, () -> checkoutRevision(1));
+
+        fileContent("file.txt");
+        fileContent("dir/new.txt");
+        fileContent("blocked.txt/untracked.txt");
+        log();
+
+        check("failedCheckout.txt");
+    }
+
+    @Test
+    public void testSameContentGetsSameTreeId() throws Exception {
+        createFile("dir/file1.txt", "aaa");
+        createFile("file2.txt", "bbb");
+        add("dir/file1.txt", "file2.txt");
+        commit("First commit");
+        // another repository with the same files added in another order, commits differ by date
+        String otherDirectory = new File("./playground/other").getAbsolutePath();
+        GitCli other = new GitCliImpl(otherDirectory);
+        other.setOutputStream(new PrintStream(OutputStream.nullOutputStream()));
+        other.runCommand(GitConstants.INIT, List.of());
+        Files.createDirectories(Paths.get(otherDirectory, "dir"));
+        Files.writeString(Paths.get(otherDirectory, "file2.txt"), "bbb");
+        Files.writeString(Paths.get(otherDirectory, "dir/file1.txt"), "aaa");
+        other.runCommand(GitConstants.ADD, List.of("file2.txt"));
+        other.runCommand(GitConstants.ADD, List.of("dir/file1.txt"));
+        other.runCommand(GitConstants.COMMIT, List.of("First commit"));
+
+        assertEquals(getHeadTree(new File("./playground/").getAbsolutePath(), getCli()), getHeadTree(otherDirectory, other));
+    }
+
+    @Test
+    public void testFastForwardKeepsLocalChanges() throws Exception {
+        createFileAndCommit("file.txt", "aaa");
+        createBranch("feature");
+        createFile("file.txt", "bbb");
+        add("file.txt");
+        commit("Change file");
+        checkoutMaster();
+        // not committed, the fast-forward would overwrite it
+        createFile("file.txt", "local");
+        assertThrows(GitException.class, () -> merge("feature"));
+        fileContent("file.txt");
+        createFile("file.txt", "aaa");
+        merge("feature");
+        fileContent("file.txt");
+
+        check("fastForward.txt");
+    }
+
+    @Test
+    public void testRelativeRevisionReadsNoCommits() throws Exception {
+        for (int i = 1; i <= 4; i++) {
+            createFile("file.txt", "version " + i);
+            add("file.txt");
+            commit("Commit " + i);
+        }
+        getCli().getRelativeRevisionFromHead(3);
+
+        // only HEAD is read when the repository is loaded, its ancestors come from the commit graph
+        CommandStatistics statistics = ((GitCliImpl) getCli()).getLastCommandStatistics();
+        assertEquals(1, statistics.get(CommitStore.COMMITS_READ));
+    }
+
+    @Test
+    public void testLogReadsOnlyPrintedCommits() throws Exception {
+        for (int i = 1; i <= 4; i++) {
+            createFile("file.txt", "version " + i);
+            add("file.txt");
+            commit("Commit " + i);
+        }
+        log(2);
+
+        // HEAD is read when the repository is loaded and the second commit when it is printed
+        CommandStatistics statistics = ((GitCliImpl) getCli()).getLastCommandStatistics();
+        assertEquals(2, statistics.get(CommitStore.COMMITS_READ));
+
+        check("logLimit.txt");
+    }
+
+    @Test
+    public void testDaemonRoundTrip() throws Exception {
+        String workingDirectory = new File("./playground/").getAbsolutePath();
+        createFile("file.txt", "aaa");
+        Thread daemon = new Thread(() -> {
+            try {
+                new GitDaemon(workingDirectory).run();
+            } catch (GitException exception) {
+                throw new RuntimeException(exception);
+            }
+        });
+        daemon.start();
+        for (int attempt = 0; !DaemonClient.isRunning(workingDirectory); attempt++) {
+            assertTrue(attempt < 500, "Daemon hasn't started");
+            Thread.sleep(10);
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PrintStream printStream = new PrintStream(output, true);
+        assertTrue(DaemonClient.run(workingDirectory, GitConstants.ADD, List.of("file.txt"), printStream));
+        // an empty request is answered with an error and the daemon keeps serving
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(
+                Paths.get(workingDirectory, GitConstants.DAEMON_SOCKET_FILE)))) {
+            new DataOutputStream(Channels.newOutputStream(channel)).writeInt(0);
+            printStream.write(Channels.newInputStream(channel).readAllBytes());
+        }
+        assertTrue(DaemonClient.run(workingDirectory, GitConstants.COMMIT, List.of("First commit"), printStream));
+        assertTrue(DaemonClient.run(workingDirectory, GitConstants.DAEMON_STOP, List.of(), printStream));
+        daemon.join();
+
+        assertEquals("Add completed successful\nInvalid daemon request\nFiles committed\nDaemon stopped\n",
+                output.toString());
+        assertFalse(DaemonClient.isRunning(workingDirectory));
+        log();
+
+        check("daemon.txt");
+    }
+
+    @Test
+    public void testBatchSavesOnce() throws Exception {
+        createFile("file1.txt", "aaa");
+        createFile("file2.txt", "bbb");
+        getCli().runCommands(List.of(List.of("add", "file1.txt"), List.of("add", "file2.txt"),
+                List.of("rm", "file2.txt"), List.of("commit", "Add file1.txt")));
+
+        CommandStatistics statistics = ((GitCliImpl) getCli()).getLastCommandStatistics();
+        assertEquals(1, statistics.get(RepositorySession.LOADS));
+        assertEquals(1, statistics.get(RepositorySession.SAVES));
+        status();
+        log();
+
+        check("batch.txt");
+    }
+
+    @Test
+    public void testBatchRollback() throws Exception {
+        createFile("file.txt", "aaa");
+        assertThrows(GitException.class, () -> getCli().runCommands(List.of(List.of("add", "file.txt"),
+                List.of("commit", "First commit"), List.of("reset", "0123abcd"))));
+        status();
+        log();
+
+        check("batchRollback.txt");
+    }
+
+    @Test
+    public void testTornJournalIsDiscarded() throws Exception {
+        createFile("file.txt", "aaa");
+        add("file.txt");
+        // a save interrupted while the journal was written
+        createFile("git/journal", "GJNL");
+        status();
+
+        CommandStatistics statistics = ((GitCliImpl) getCli()).getLastCommandStatistics();
+        assertEquals(1, statistics.get(Journal.JOURNALS_DISCARDED));
+        assertEquals(0, statistics.get(Journal.JOURNALS_REPLAYED));
+    }
+
+    @Test
+    public void testCommandWaitsForLock() throws Exception {
+        RepositoryLock lock = RepositoryLock.acquire(new File("./playground/").getAbsolutePath(), false,
+                new CommandStatistics());
+        Thread owner = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException ignored) {
+            }
+            lock.close();
+        });
+        owner.start();
+        status();
+        owner.join();
+
+        CommandStatistics statistics = ((GitCliImpl) getCli()).getLastCommandStatistics();
+        assertEquals(1, statistics.get(RepositoryLock.LOCK_WAITS));
+    }
+
+    @Test
+    public void testLockTimeout() throws Exception {
+        System.setProperty(GitConstants.LOCK_TIMEOUT_PROPERTY, "50");
+        RepositoryLock lock = RepositoryLock.acquire(new File("./playground/").getAbsolutePath(), true,
+                new CommandStatistics());
+        try {
+            createFile("file.txt", "aaa");
+            assertThrows(GitException.class, () -> add("file.txt"));
+        } finally {
+            lock.close();
+            System.clearProperty(GitConstants.LOCK_TIMEOUT_PROPERTY);
+        }
+    }
+
+    @Test
+    public void testGcConvertsJsonCommits() throws Exception {
+        createFile("file.txt", "aaa");
+        add("file.txt");
+        commit("First commit");
+        // the head commit as older versions wrote it
+        ObjectMapper objectMapper = new ObjectMapper();
+        CommitStore commitStore = new CommitStore(Paths.get(new File("./playground/").getAbsolutePath()
+                + GitConstants.COMMITS_DIRECTORY), objectMapper, new CommandStatistics());
+        ObjectId head = ObjectId.fromString(getCli().getRelativeRevisionFromHead(0));
+        Files.write(commitStore.getCommitPath(head), objectMapper.writeValueAsBytes(commitStore.read(head)));
+        gc();
+
+        CommandStatistics statistics = ((GitCliImpl) getCli()).getLastCommandStatistics();
+        assertEquals(1, statistics.get(CommitStore.COMMITS_CONVERTED));
+        assertEquals("First commit", commitStore.read(head).getMessage());
+    }
+
+    @Test
+    public void testGc() throws Exception {
+        String file = "file.txt";
+        String content = "first line of a long enough file\nsecond line of a long enough file\n";
+        createFile(file, content + "aaa");
+        add(file);
+        commit("First commit");
+
+        createFile(file, content + "bbb");
+        add(file);
+        commit("Second commit");
+        gc();
+
+        checkoutRevision(1);
+        fileContent(file);
+        checkoutMaster();
+        fileContent(file);
+        status();
+
+        check("gc.txt");
+    }
+
+    private static void setModificationTime(String file, Instant time) throws Exception {
+        Files.setLastModifiedTime(Paths.get("./playground/", file), FileTime.from(time));
+    }
+
+    private static ObjectId getHeadTree(String workingDirectory, GitCli cli) throws Exception {
+        CommitStore commitStore = new CommitStore(Paths.get(workingDirectory + GitConstants.COMMITS_DIRECTORY),
+                new ObjectMapper(), new CommandStatistics());
+        return commitStore.read(ObjectId.fromString(cli.getRelativeRevisionFromHead(0))).getTree();
+    }
+}
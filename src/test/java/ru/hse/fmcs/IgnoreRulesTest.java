@@ -0,0 +1,76 @@
+package ru.hse.fmcs;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class IgnoreRulesTest {
+    @Test
+    public void testLeadingDoubleStarMatchesAtAnyDepth() {
+        IgnoreRules rules = createRules("**/build");
+        assertTrue(rules.isIgnored("build", true));
+        assertTrue(rules.isIgnored("a/build", true));
+        assertTrue(rules.isIgnored("a/b/build", true));
+        assertFalse(rules.isIgnored("builds", true));
+        assertFalse(rules.isIgnored("build/file.txt", false));
+    }
+
+    @Test
+    public void testMiddleDoubleStarMatchesZeroOrMoreSegments() {
+        IgnoreRules rules = createRules("src/**/generated");
+        assertTrue(rules.isIgnored("src/generated", true));
+        assertTrue(rules.isIgnored("src/a/generated", true));
+        assertTrue(rules.isIgnored("src/a/b/generated", true));
+        assertFalse(rules.isIgnored("generated", true));
+        assertFalse(rules.isIgnored("lib/src/generated", true));
+    }
+
+    @Test
+    public void testNegationReincludes() {
+        IgnoreRules rules = createRules("*.log", "!keep.log");
+        assertTrue(rules.isIgnored("debug.log", false));
+        assertTrue(rules.isIgnored("dir/debug.log", false));
+        assertFalse(rules.isIgnored("keep.log", false));
+        assertFalse(rules.isIgnored("dir/keep.log", false));
+    }
+
+    @Test
+    public void testLastMatchingRuleWins() {
+        IgnoreRules rules = createRules("!keep.log", "*.log");
+        assertTrue(rules.isIgnored("keep.log", false));
+    }
+
+    @Test
+    public void testEscapedNegationIsLiteral() {
+        IgnoreRules rules = createRules("\\!important.txt");
+        assertTrue(rules.isIgnored("!important.txt", false));
+        assertFalse(rules.isIgnored("important.txt", false));
+    }
+
+    @Test
+    public void testDirectoryOnlyRule() {
+        IgnoreRules rules = createRules("tmp/");
+        assertTrue(rules.isIgnored("tmp", true));
+        assertTrue(rules.isIgnored("a/tmp", true));
+        assertFalse(rules.isIgnored("tmp", false));
+    }
+
+    @Test
+    public void testTrailingDoubleStarMatchesOnlyInside() {
+        IgnoreRules rules = createRules("logs/**", "!logs/keep.txt");
+        // the scanner doesn't enter ignored directories, so logs itself must stay visible for the negation
+        assertFalse(rules.isIgnored("logs", true));
+        assertTrue(rules.isIgnored("logs/today.txt", false));
+        assertTrue(rules.isIgnored("logs/old/today.txt", false));
+        assertFalse(rules.isIgnored("logs/keep.txt", false));
+    }
+
+    private static IgnoreRules createRules(String... lines) {
+        IgnoreRules rules = new IgnoreRules();
+        for (String line : lines) {
+            rules.add(line);
+        }
+        return rules;
+    }
+}
@@ -0,0 +1,102 @@
+package ru.hse.fmcs;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LineMergerTest {
+    @Test
+    public void testChangesOfBothSidesAreCombined() {
+        LineMerger.Result result = merge("a\nb\nc\nd\n", "A\nb\nc\nd\n", "a\nb\nc\nD\n");
+        assertFalse(result.hasConflict());
+        assertEquals("A\nb\nc\nD\n", content(result));
+    }
+
+    @Test
+    public void testSameChangeOnBothSidesIsNotConflict() {
+        LineMerger.Result result = merge("a\nb\n", "a\nB\n", "a\nB\n");
+        assertFalse(result.hasConflict());
+        assertEquals("a\nB\n", content(result));
+    }
+
+    @Test
+    public void testAdjacentChangesConflict() {
+        // like diff3, changes with no unchanged line between them are one region
+        LineMerger.Result result = merge("a\nb\n", "A\nb\n", "a\nB\n");
+        assertTrue(result.hasConflict());
+        assertEquals("<<<<<<< master\nA\nb\n=======\na\nB\n>>>>>>> develop\n", content(result));
+    }
+
+    @Test
+    public void testLastLineWithoutNewline() {
+        // only ours adds the newline, theirs changes the first line
+        LineMerger.Result result = merge("a\nb\nc", "a\nb\nc\n", "A\nb\nc");
+        assertFalse(result.hasConflict());
+        assertEquals("A\nb\nc\n", content(result));
+    }
+
+    @Test
+    public void testConflictOnLastLineWithoutNewline() {
+        LineMerger.Result result = merge("a\nb", "a\nours", "a\ntheirs");
+        assertTrue(result.hasConflict());
+        // markers always start on their own line
+        assertEquals("a\n<<<<<<< master\nours\n=======\ntheirs\n>>>>>>> develop\n", content(result));
+    }
+
+    @Test
+    public void testAddAddConflict() {
+        LineMerger.Result result = merge("", "ours\n", "theirs\n");
+        assertTrue(result.hasConflict());
+        assertEquals("<<<<<<< master\nours\n=======\ntheirs\n>>>>>>> develop\n", content(result));
+    }
+
+    @Test
+    public void testSameAddOnBothSides() {
+        LineMerger.Result result = merge("", "same\n", "same\n");
+        assertFalse(result.hasConflict());
+        assertEquals("same\n", content(result));
+    }
+
+    @Test
+    public void testDeletionAndChangeConflict() {
+        LineMerger.Result result = merge("a\nb\nc\n", "a\nc\n", "a\nB\nc\n");
+        assertTrue(result.hasConflict());
+        assertEquals("a\n<<<<<<< master\n=======\nB\n>>>>>>> develop\nc\n", content(result));
+    }
+
+    @Test
+    public void testBinaryIsConflictKeepingOurs() {
+        byte[] ours = {'a', 0, 'b'};
+        LineMerger.Result result = LineMerger.merge(bytes("a\n"), ours, bytes("c\n"), "master", "develop");
+        assertTrue(result.hasConflict());
+        assertArrayEquals(ours, result.getContent());
+    }
+
+    @Test
+    public void testBytesAreKept() {
+        // not valid UTF-8, the merge must not replace them
+        byte[] base = {'a', '\n', 'b', '\n', (byte) 0xff, '\n'};
+        byte[] ours = {'A', '\n', 'b', '\n', (byte) 0xff, '\n'};
+        byte[] theirs = {'a', '\n', 'b', '\n', (byte) 0xfe, '\n'};
+        LineMerger.Result result = LineMerger.merge(base, ours, theirs, "master", "develop");
+        assertFalse(result.hasConflict());
+        assertArrayEquals(new byte[]{'A', '\n', 'b', '\n', (byte) 0xfe, '\n'}, result.getContent());
+    }
+
+    private static LineMerger.Result merge(String base, String ours, String theirs) {
+        return LineMerger.merge(bytes(base), bytes(ours), bytes(theirs), "master", "develop");
+    }
+
+    private static byte[] bytes(String content) {
+        return content.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static String content(LineMerger.Result result) {
+        return new String(result.getContent(), StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,36 @@
+package ru.hse.fmcs;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class MetadataCodecTest {
+    private static final Map<String, String> FILES = Map.of(
+            "file.txt", "80d8f975e768eecac59d22a788bf8e811e51ca85e309ee47f1e821e3e58280f2",
+            "dir/inner.txt", "233562de1a0288b139c4fa40b7d189f806e906eeb048517aeb67f34ac0e2faf1");
+
+    @Test
+    public void testTrackedFilesAreDecoded() throws Exception {
+        Repository.Commit commit = MetadataCodec.decodeCommit(MetadataCodec.encodeCommit(createLegacyCommit()));
+        assertEquals(FILES, Repository.readTrackedFiles(commit));
+    }
+
+    @Test
+    public void testCorruptedTrackedFilesThrowGitException() throws Exception {
+        byte[] content = MetadataCodec.encodeCommit(createLegacyCommit());
+        // the files are decoded only when they are used, so the commit itself is read
+        Repository.Commit commit = MetadataCodec.decodeCommit(Arrays.copyOf(content, content.length - 1));
+        assertThrows(GitException.class, () -> Repository.readTrackedFiles(commit));
+    }
+
+    // commit of the versions before trees, with a flat file map instead of a tree
+    private static Repository.Commit createLegacyCommit() {
+        return new Repository.Commit(ObjectId.sha256("commit".getBytes(StandardCharsets.UTF_8)), null, null, null,
+                FILES, "2021-01-01T00:00:00Z", "First commit", "Test user");
+    }
+}
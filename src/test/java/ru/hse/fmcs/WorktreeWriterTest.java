@@ -0,0 +1,197 @@
+package ru.hse.fmcs;
+
+import org.apache.commons.io.FileUtils;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class WorktreeWriterTest {
+    private Path root;
+    private final MemoryBlobStore blobStore = new MemoryBlobStore();
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("worktree");
+        Files.createDirectories(root.resolve("git"));
+        writeFile("a.txt", "old a");
+        writeFile("dir/b.txt", "old b");
+        writeFile("c.txt", "old c");
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(root.toFile());
+    }
+
+    @Test
+    public void testChangesAreApplied() throws Exception {
+        Map<String, String> changes = new HashMap<>();
+        changes.put("a.txt", null);
+        changes.put("dir/b.txt", null);
+        changes.put("c.txt", blobStore.add("new c"));
+        changes.put("new/d.txt", blobStore.add("new d"));
+        new WorktreeWriter(root.toString(), blobStore, 2, new CommandStatistics()).apply(changes);
+
+        assertFalse(Files.exists(root.resolve("a.txt")));
+        assertFalse(Files.exists(root.resolve("dir")));
+        assertEquals("new c", readFile("c.txt"));
+        assertEquals("new d", readFile("new/d.txt"));
+        assertEquals(List.of(), listGitDirectory());
+    }
+
+    @Test
+    public void testRuntimeFailureIsRolledBack() throws Exception {
+        Map<String, String> changes = new HashMap<>();
+        changes.put("a.txt", null);
+        changes.put("dir/b.txt", null);
+        changes.put("c.txt", blobStore.add("new c"));
+        // fails after the first file is already deleted
+        CommandStatistics statistics = new FailingStatistics(2, () -> {
+            throw new UncheckedIOException(new IOException("Disk is gone"));
+        });
+        WorktreeWriter writer = new WorktreeWriter(root.toString(), blobStore, 1, statistics);
+        GitException exception = assertThrows(GitException.class, () -> writer.apply(changes));
+
+        assertTrue(exception.getMessage().endsWith("working tree is unchanged"));
+        assertEquals("old a", readFile("a.txt"));
+        assertEquals("old b", readFile("dir/b.txt"));
+        assertEquals("old c", readFile("c.txt"));
+        assertEquals(List.of(), listGitDirectory());
+    }
+
+    @Test
+    public void testEmptyDirectoryIsNotReplaced() throws Exception {
+        Files.createDirectories(root.resolve("empty"));
+        Map<String, String> changes = new HashMap<>();
+        changes.put("a.txt", blobStore.add("new a"));
+        changes.put("empty", blobStore.add("file"));
+        WorktreeWriter writer = new WorktreeWriter(root.toString(), blobStore, 1, new CommandStatistics());
+        assertThrows(GitException.class, () -> writer.apply(changes));
+
+        assertEquals("old a", readFile("a.txt"));
+        assertTrue(Files.isDirectory(root.resolve("empty")));
+        assertEquals(List.of(), listGitDirectory());
+    }
+
+    @Test
+    public void testFailedRollbackKeepsBackups() throws Exception {
+        Map<String, String> changes = new HashMap<>();
+        changes.put("a.txt", null);
+        // something takes the place of the deleted file before the checkout fails
+        CommandStatistics statistics = new FailingStatistics(1, () -> {
+            try {
+                Files.createDirectories(root.resolve("a.txt/inner"));
+            } catch (IOException exception) {
+                throw new UncheckedIOException(exception);
+            }
+            throw new IllegalStateException("Checkout interrupted");
+        });
+        WorktreeWriter writer = new WorktreeWriter(root.toString(), blobStore, 1, statistics);
+        GitException exception = assertThrows(GitException.class, () -> writer.apply(changes));
+
+        List<Path> backups = listGitDirectory();
+        assertEquals(1, backups.size());
+        assertTrue(exception.getMessage().contains(backups.get(0).toString()));
+        try (Stream<Path> files = Files.list(backups.get(0))) {
+            assertEquals("old a", Files.readString(files.findFirst().orElseThrow()));
+        }
+    }
+
+    private void writeFile(String path, String content) throws IOException {
+        Files.createDirectories(root.resolve(path).getParent());
+        Files.writeString(root.resolve(path), content);
+    }
+
+    private String readFile(String path) throws IOException {
+        return Files.readString(root.resolve(path));
+    }
+
+    // what the writer leaves in git/, the staging directory and backups are removed unless needed
+    private List<Path> listGitDirectory() throws IOException {
+        try (Stream<Path> files = Files.list(root.resolve("git"))) {
+            return files.collect(Collectors.toList());
+        }
+    }
+
+    // runs the action when a file is removed for the given time
+    private static class FailingStatistics extends CommandStatistics {
+        private final Runnable action;
+        private int removalsLeft;
+
+        private FailingStatistics(int removal, Runnable failure) {
+            removalsLeft = removal;
+            action = failure;
+        }
+
+        @Override
+        public synchronized void increment(@NotNull String counter) {
+            super.increment(counter);
+            if (counter.equals(WorktreeWriter.FILES_REMOVED) && --removalsLeft == 0) {
+                action.run();
+            }
+        }
+    }
+
+    private static class MemoryBlobStore implements BlobStore {
+        private final Map<String, byte[]> blobs = new HashMap<>();
+
+        private String add(String content) {
+            String blobHash = Integer.toHexString(content.hashCode());
+            blobs.put(blobHash, content.getBytes(StandardCharsets.UTF_8));
+            return blobHash;
+        }
+
+        @Override
+        public boolean contains(@NotNull String blobHash) {
+            return blobs.containsKey(blobHash);
+        }
+
+        @Override
+        public @NotNull String hash(@NotNull Path file) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public @NotNull String write(@NotNull Path file) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public @NotNull String write(byte @NotNull [] content) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public @NotNull InputStream open(@NotNull String blobHash) {
+            return new ByteArrayInputStream(blobs.get(blobHash));
+        }
+
+        @Override
+        public void restore(@NotNull String blobHash, @NotNull Path target) throws GitException {
+            try {
+                Files.write(target, blobs.get(blobHash));
+            } catch (IOException exception) {
+                throw new GitException("Can't restore " + target);
+            }
+        }
+    }
+}